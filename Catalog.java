@@ -0,0 +1,382 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory metadata of the master: file -> partitions -> replica locations, plus a secondary
+ * index slave -> hosted partitions. Locations are parsed once, when a file is recorded or replayed.
+ * Reads never block: entries are immutable and swapped in whole. Writers that must keep the
+ * catalog and the journal in the same order hold {@link #lock} for the file, so changes to
+ * different files proceed in parallel.
+ */
+public class Catalog {
+
+    public static class Replica {
+        public final String ip;
+        public final int port;
+
+        public Replica(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+
+        // "ip:port"
+        public static Replica parse(String address) {
+            int separator = address.lastIndexOf(':');
+            return new Replica(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Replica)) {
+                return false;
+            }
+            Replica other = (Replica) o;
+            return port == other.port && ip.equals(other.ip);
+        }
+
+        @Override
+        public int hashCode() {
+            return ip.hashCode() * 31 + port;
+        }
+
+        @Override
+        public String toString() {
+            return ip + ":" + port;
+        }
+    }
+
+    public static class Partition {
+        public final int index;
+        public final long size;
+        public final List<Replica> replicas;
+        // SHA-256 of a deduplicated chunk, held in the slaves' chunk stores; null for a partition file
+        public final String chunk;
+
+        public Partition(int index, long size, List<Replica> replicas) {
+            this(index, size, replicas, null);
+        }
+
+        public Partition(int index, long size, List<Replica> replicas, String chunk) {
+            this.index = index;
+            this.size = size;
+            this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+            this.chunk = chunk;
+        }
+    }
+
+    // Between a file name and its version in the name its partitions are stored under on the slaves
+    public static final char VERSION_SEPARATOR = '#';
+
+    public static class FileEntry {
+        public final String name;
+        // How the partitions are stored on the slaves, see Codec
+        public final String codec;
+        // Each put writes its partitions under a name of its own, see storedName; 0 for files put before
+        public final long version;
+        public final List<Partition> partitions;
+
+        public FileEntry(String name, List<Partition> partitions) {
+            this(name, Codec.NONE, partitions);
+        }
+
+        public FileEntry(String name, String codec, List<Partition> partitions) {
+            this(name, codec, 0, partitions);
+        }
+
+        public FileEntry(String name, String codec, long version, List<Partition> partitions) {
+            this.name = name;
+            this.codec = codec;
+            this.version = version;
+            this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
+        }
+
+        // The same version of the file with other partitions or replicas
+        public FileEntry withPartitions(List<Partition> partitions) {
+            return new FileEntry(name, codec, version, partitions);
+        }
+
+        // The name the slaves know the partitions of this version by
+        public String storedName() {
+            return Catalog.storedName(name, version);
+        }
+
+        public boolean compressed() {
+            return !codec.equals(Codec.NONE);
+        }
+
+        public boolean deduplicated() {
+            return !partitions.isEmpty() && partitions.get(0).chunk != null;
+        }
+
+        boolean hosts(int index, Replica replica) {
+            for (Partition partition : partitions) {
+                if (partition.index == index) {
+                    return partition.replicas.contains(replica);
+                }
+            }
+            return false;
+        }
+
+        public long size() {
+            long size = 0;
+            for (Partition partition : partitions) {
+                size += Math.max(0, partition.size);
+            }
+            return size;
+        }
+
+        /**
+         * Journal record: "PUT <file> [codec=<codec>] [v=<version>] <index>:<size>:<ip:port>,<ip:port>...[@<chunk>]",
+         * sizes before compression. Records written before sizes were tracked list one
+         * "index,ip,port" token per replica; their sizes are -1. Names hold no spaces, see validName.
+         */
+        public String toRecord() {
+            StringBuilder record = new StringBuilder("PUT ").append(name);
+            if (compressed()) {
+                record.append(" codec=").append(codec);
+            }
+            if (version != 0) {
+                record.append(" v=").append(version);
+            }
+            for (Partition partition : partitions) {
+                StringJoiner replicas = new StringJoiner(",");
+                for (Replica replica : partition.replicas) {
+                    replicas.add(replica.toString());
+                }
+                record.append(' ').append(partition.index).append(':').append(partition.size).append(':').append(replicas);
+                if (partition.chunk != null) {
+                    record.append('@').append(partition.chunk);
+                }
+            }
+            return record.toString();
+        }
+
+        public static FileEntry parse(String[] record) {
+            TreeMap<Integer, Long> sizes = new TreeMap<>();
+            Map<Integer, List<Replica>> replicas = new HashMap<>();
+            Map<Integer, String> chunks = new HashMap<>();
+            String codec = Codec.NONE;
+            long version = 0;
+            for (int i = 2; i < record.length; i++) {
+                String token = record[i];
+                if (token.startsWith("codec=")) {
+                    codec = token.substring(6);
+                    if (!Codec.isKnown(codec)) {
+                        throw new IllegalArgumentException("Unknown codec: " + codec);
+                    }
+                } else if (token.startsWith("v=")) {
+                    version = Long.parseLong(token.substring(2));
+                } else if (token.contains(":")) {
+                    String[] parts = token.split(":", 3);
+                    int index = Integer.parseInt(parts[0]);
+                    sizes.put(index, Long.parseLong(parts[1]));
+                    int chunk = parts[2].indexOf('@');
+                    if (chunk >= 0) {
+                        chunks.put(index, parts[2].substring(chunk + 1));
+                        parts[2] = parts[2].substring(0, chunk);
+                    }
+                    List<Replica> locations = replicas.computeIfAbsent(index, k -> new ArrayList<>());
+                    for (String address : parts[2].split(",")) {
+                        if (!address.isEmpty()) {
+                            locations.add(Replica.parse(address));
+                        }
+                    }
+                } else {
+                    String[] parts = token.split(",");
+                    int index = Integer.parseInt(parts[0].trim());
+                    sizes.putIfAbsent(index, -1L);
+                    replicas.computeIfAbsent(index, k -> new ArrayList<>()).add(new Replica(parts[1].trim(), Integer.parseInt(parts[2].trim())));
+                }
+            }
+            List<Partition> partitions = new ArrayList<>();
+            for (Map.Entry<Integer, Long> size : sizes.entrySet()) {
+                partitions.add(new Partition(size.getKey(), size.getValue(), replicas.get(size.getKey()), chunks.get(size.getKey())));
+            }
+            return new FileEntry(record[1], codec, version, partitions);
+        }
+    }
+
+    /**
+     * The separator is kept out of file names, so that no stored name belongs to two files, and so
+     * is whitespace: names travel in space-separated commands and journal records.
+     */
+    public static boolean validName(String name) {
+        return !name.isEmpty() && name.indexOf(VERSION_SEPARATOR) < 0 && name.chars().noneMatch(Character::isWhitespace);
+    }
+
+    public static String storedName(String name, long version) {
+        return version == 0 ? name : name + VERSION_SEPARATOR + version;
+    }
+
+    // The file a stored name belongs to
+    public static String nameOf(String storedName) {
+        int separator = storedName.lastIndexOf(VERSION_SEPARATOR);
+        return separator < 0 ? storedName : storedName.substring(0, separator);
+    }
+
+    // The version in a stored name, 0 for a name without one
+    public static long versionOf(String storedName) {
+        int separator = storedName.lastIndexOf(VERSION_SEPARATOR);
+        try {
+            return separator < 0 ? 0 : Long.parseLong(storedName.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static class PartitionRef {
+        public final String fileName;
+        public final int index;
+
+        public PartitionRef(String fileName, int index) {
+            this.fileName = fileName;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PartitionRef)) {
+                return false;
+            }
+            PartitionRef other = (PartitionRef) o;
+            return index == other.index && fileName.equals(other.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return fileName.hashCode() * 31 + index;
+        }
+    }
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentNavigableMap<String, FileEntry> files = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<Replica, Set<PartitionRef>> bySlave = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public Catalog() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The lock guarding changes to one file; unrelated files rarely share a stripe.
+     */
+    public ReentrantLock lock(String fileName) {
+        return locks[(fileName.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Locks the stripes of several files in stripe order, so callers locking overlapping sets
+     * cannot deadlock. Returns the locks to release.
+     */
+    public List<ReentrantLock> lockAll(Collection<String> fileNames) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String fileName : fileNames) {
+            stripes.add((fileName.hashCode() & 0x7fffffff) % locks.length);
+        }
+        List<ReentrantLock> held = new ArrayList<>();
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+            held.add(locks[stripe]);
+        }
+        return held;
+    }
+
+    public FileEntry get(String fileName) {
+        return files.get(fileName);
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    public Collection<FileEntry> files() {
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Records a file, replacing any previous version of it. Readers see either version, never neither.
+     */
+    public void put(FileEntry entry) {
+        index(entry);
+        FileEntry previous = files.put(entry.name, entry);
+        if (previous != null) {
+            unindex(previous, entry);
+        }
+    }
+
+    public FileEntry remove(String fileName) {
+        FileEntry entry = files.remove(fileName);
+        if (entry != null) {
+            unindex(entry, null);
+        }
+        return entry;
+    }
+
+    private void index(FileEntry entry) {
+        for (Partition partition : entry.partitions) {
+            PartitionRef ref = new PartitionRef(entry.name, partition.index);
+            for (Replica replica : partition.replicas) {
+                bySlave.compute(replica, (k, hosted) -> {
+                    if (hosted == null) {
+                        hosted = ConcurrentHashMap.newKeySet();
+                    }
+                    hosted.add(ref);
+                    return hosted;
+                });
+            }
+        }
+    }
+
+    // Drops the slave index entries of old that the current version of the file no longer has
+    private void unindex(FileEntry old, FileEntry current) {
+        for (Partition partition : old.partitions) {
+            PartitionRef ref = new PartitionRef(old.name, partition.index);
+            for (Replica replica : partition.replicas) {
+                if (current != null && current.hosts(partition.index, replica)) {
+                    continue;
+                }
+                bySlave.computeIfPresent(replica, (k, hosted) -> {
+                    hosted.remove(ref);
+                    return hosted.isEmpty() ? null : hosted;
+                });
+            }
+        }
+    }
+
+    public Partition partition(PartitionRef ref) {
+        FileEntry entry = files.get(ref.fileName);
+        if (entry != null) {
+            for (Partition partition : entry.partitions) {
+                if (partition.index == ref.index) {
+                    return partition;
+                }
+            }
+        }
+        return null;
+    }
+
+    public Set<PartitionRef> partitionsOn(Replica slave) {
+        Set<PartitionRef> hosted = bySlave.get(slave);
+        return hosted == null ? Collections.emptySet() : new HashSet<>(hosted);
+    }
+
+    /**
+     * The distinct slaves holding at least one partition of the file.
+     */
+    public Set<Replica> slavesOf(String fileName) {
+        Set<Replica> slaves = new LinkedHashSet<>();
+        FileEntry entry = files.get(fileName);
+        if (entry != null) {
+            for (Partition partition : entry.partitions) {
+                slaves.addAll(partition.replicas);
+            }
+        }
+        return slaves;
+    }
+}
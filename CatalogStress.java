@@ -0,0 +1,168 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hammers one catalog and its journal with puts, rms and gets of a few overlapping files from
+ * many threads, the way client handlers do, then checks what they left: every get saw a whole
+ * version of its file, the slave index matches the files, and replaying the journal gives the
+ * same catalog back. A small snapshot interval makes snapshots run in the middle of it all.
+ * Usage: java server.CatalogStress [threads] [seconds] [files] [directory]
+ */
+public class CatalogStress {
+    static final int SLAVES = 6;
+    static final int MAX_PARTITIONS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        Path directory = args.length > 3 ? Paths.get(args[3]) : Files.createTempDirectory("catalog-stress");
+
+        Catalog catalog = new Catalog();
+        MetadataJournal journal = new MetadataJournal(directory.toString(), "stress", 200, () -> records(catalog));
+        journal.open(record -> apply(catalog, record));
+
+        List<Catalog.Replica> slaves = new ArrayList<>();
+        for (int i = 0; i < SLAVES; i++) {
+            slaves.add(new Catalog.Replica("127.0.0.1", 9081 + i));
+        }
+        AtomicLong versions = new AtomicLong();
+        AtomicLong puts = new AtomicLong();
+        AtomicLong removes = new AtomicLong();
+        AtomicLong gets = new AtomicLong();
+        AtomicLong torn = new AtomicLong();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(pool.submit(() -> {
+                Random random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    String name = "file" + random.nextInt(files);
+                    int operation = random.nextInt(10);
+                    if (operation < 4) {
+                        ReentrantLock lock = catalog.lock(name);
+                        lock.lock();
+                        try {
+                            Catalog.FileEntry entry = entry(name, versions.incrementAndGet(), slaves, random);
+                            catalog.put(entry);
+                            journal.append(entry.toRecord());
+                            puts.incrementAndGet();
+                        } finally {
+                            lock.unlock();
+                        }
+                    } else if (operation < 6) {
+                        ReentrantLock lock = catalog.lock(name);
+                        lock.lock();
+                        try {
+                            if (catalog.remove(name) != null) {
+                                journal.append("RM " + name);
+                                removes.incrementAndGet();
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    } else {
+                        Catalog.FileEntry entry = catalog.get(name);
+                        if (entry != null && !whole(entry)) {
+                            torn.incrementAndGet();
+                        }
+                        gets.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        pool.shutdown();
+        journal.close();
+
+        boolean ok = torn.get() == 0;
+        if (!ok) {
+            System.out.println(torn.get() + " gets saw a partly replaced file");
+        }
+        ok &= indexMatches(catalog, slaves);
+
+        Catalog replayed = new Catalog();
+        MetadataJournal reopened = new MetadataJournal(directory.toString(), "stress", 200, () -> records(replayed));
+        reopened.open(record -> apply(replayed, record));
+        reopened.close();
+        if (!new TreeSet<>(records(catalog)).equals(new TreeSet<>(records(replayed)))) {
+            System.out.println("Replaying the journal gives " + replayed.files().size() + " files, the catalog holds " + catalog.files().size());
+            ok = false;
+        }
+
+        System.out.println(threads + " threads, " + seconds + "s on " + files + " files: " + puts.get() + " puts, "
+                + removes.get() + " rms, " + gets.get() + " gets, " + catalog.files().size() + " files left");
+        System.out.println(ok ? "CatalogStress: OK" : "CatalogStress: FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // Every partition of a version carries the version as its size, so a mix of two shows
+    static Catalog.FileEntry entry(String name, long version, List<Catalog.Replica> slaves, Random random) {
+        List<Catalog.Partition> partitions = new ArrayList<>();
+        int count = 1 + random.nextInt(MAX_PARTITIONS);
+        for (int i = 0; i < count; i++) {
+            List<Catalog.Replica> replicas = new ArrayList<>(slaves);
+            Collections.shuffle(replicas, random);
+            partitions.add(new Catalog.Partition(i, version, replicas.subList(0, 2)));
+        }
+        return new Catalog.FileEntry(name, Codec.NONE, version, partitions);
+    }
+
+    static boolean whole(Catalog.FileEntry entry) {
+        for (int i = 0; i < entry.partitions.size(); i++) {
+            Catalog.Partition partition = entry.partitions.get(i);
+            if (partition.index != i || partition.size != entry.version) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean indexMatches(Catalog catalog, List<Catalog.Replica> slaves) {
+        boolean ok = true;
+        for (Catalog.Replica slave : slaves) {
+            Set<Catalog.PartitionRef> expected = new HashSet<>();
+            for (Catalog.FileEntry entry : catalog.files()) {
+                for (Catalog.Partition partition : entry.partitions) {
+                    if (partition.replicas.contains(slave)) {
+                        expected.add(new Catalog.PartitionRef(entry.name, partition.index));
+                    }
+                }
+            }
+            Set<Catalog.PartitionRef> indexed = catalog.partitionsOn(slave);
+            if (!indexed.equals(expected)) {
+                System.out.println("Index of " + slave + " lists " + indexed.size() + " partitions, the files place " + expected.size() + " there");
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    // The records and their replay as the master has them
+    static List<String> records(Catalog catalog) {
+        List<String> records = new ArrayList<>();
+        for (Catalog.FileEntry entry : catalog.files()) {
+            records.add(entry.toRecord());
+        }
+        return records;
+    }
+
+    static void apply(Catalog catalog, String record) {
+        if (record.startsWith("PUT ")) {
+            catalog.put(Catalog.FileEntry.parse(record.split(" ")));
+        } else if (record.startsWith("RM ")) {
+            catalog.remove(record.substring(3));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.io.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads a partition sent as checksummed blocks: [int length][int crc][bytes]... [int 0], one
+ * frame per {@link Checksums#BLOCK_SIZE} block with the CRC32C recorded when the slave stored it.
+ * Each block is checked before any of it is returned, so a replica whose disk or link damaged it
+ * fails with an IOException and the reader moves on to the next one. The blocks cover whole
+ * blocks; the reply header "BLOCKS <skip> <count>" says which of their bytes were asked for.
+ * Closing the stream skips any unread frames but leaves the underlying socket open.
+ */
+public class ChecksummedInputStream extends InputStream {
+    private final DataInputStream in;
+    private final CRC32C crc = new CRC32C();
+    private byte[] block = new byte[0];
+    private int position;
+    private int limit;
+    private long skip;
+    private long remaining;
+    private int blocks;
+    private boolean finished;
+
+    public ChecksummedInputStream(InputStream in, long skip, long count) {
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        this.skip = skip;
+        this.remaining = count;
+    }
+
+    /**
+     * The data of a read reply: checksummed blocks after "BLOCKS <skip> <count>", plain frames
+     * after "PARTITION_DATA", or null for an error.
+     */
+    public static InputStream open(String reply, InputStream in) {
+        if (reply.startsWith("BLOCKS ")) {
+            String[] parts = reply.split(" ");
+            return new ChecksummedInputStream(in, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        }
+        return reply.equals("PARTITION_DATA") ? new ChunkedInputStream(in) : null;
+    }
+
+    public static void writeBlock(DataOutputStream out, byte[] data, int length, int crc) throws IOException {
+        out.writeInt(length);
+        out.writeInt(crc);
+        out.write(data, 0, length);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (position == limit) {
+            if (finished) {
+                return false;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > ChunkedInputStream.MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid block length: " + length);
+            }
+            if (length == 0) {
+                finished = true;
+                return false;
+            }
+            int expected = in.readInt();
+            if (block.length < length) {
+                block = new byte[length];
+            }
+            in.readFully(block, 0, length);
+            crc.reset();
+            crc.update(block, 0, length);
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Checksum mismatch in block " + blocks);
+            }
+            blocks++;
+            position = (int) Math.min(skip, length);
+            skip -= position;
+            limit = length;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining == 0 || !nextBlock()) {
+            return -1;
+        }
+        int n = (int) Math.min(Math.min(len, limit - position), remaining);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        remaining = Long.MAX_VALUE;
+        position = limit;
+        while (nextBlock()) {
+            position = limit;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C of every 64 KB block of a partition, kept next to it in "<partition file>.crc" as one
+ * int per block. Partitions stored before checksums existed have no .crc file and pass unchecked.
+ * The CRC32C of the whole partition is kept too, for the slave's partition index.
+ */
+public class Checksums {
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private final CRC32C crc = new CRC32C();
+    private final CRC32C whole = new CRC32C();
+    private final DataOutputStream sums;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private int inBlock;
+
+    public Checksums() {
+        sums = new DataOutputStream(buffer);
+    }
+
+    /**
+     * Adds the remaining bytes of data, without moving its position.
+     */
+    public void update(ByteBuffer data) {
+        whole.update(data.duplicate());
+        ByteBuffer view = data.duplicate();
+        while (view.hasRemaining()) {
+            int n = Math.min(view.remaining(), BLOCK_SIZE - inBlock);
+            ByteBuffer block = view.duplicate();
+            block.limit(block.position() + n);
+            crc.update(block);
+            view.position(view.position() + n);
+            inBlock += n;
+            if (inBlock == BLOCK_SIZE) {
+                endBlock();
+            }
+        }
+    }
+
+    private void endBlock() {
+        try {
+            sums.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        crc.reset();
+        inBlock = 0;
+    }
+
+    /**
+     * Writes the .crc file of partitionFile; it replaces the old one atomically.
+     */
+    public void write(File partitionFile) throws IOException {
+        if (inBlock > 0) {
+            endBlock();
+        }
+        Path target = fileFor(partitionFile).toPath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temporary, buffer.toByteArray());
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // CRC32C of everything added so far
+    public int value() {
+        return (int) whole.getValue();
+    }
+
+    public static File fileFor(File partitionFile) {
+        return new File(partitionFile.getPath() + ".crc");
+    }
+
+    /**
+     * Computes and writes the checksums of a partition already on disk, and returns the CRC32C
+     * of the whole partition.
+     */
+    public static int compute(File partitionFile, FileChannel file) throws IOException {
+        Checksums checksums = read(file);
+        checksums.write(partitionFile);
+        return checksums.value();
+    }
+
+    // Checksums of a whole file, without writing them
+    public static Checksums read(FileChannel file) throws IOException {
+        Checksums checksums = new Checksums();
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        long position = 0;
+        int n;
+        while ((n = file.read(block.clear(), position)) > 0) {
+            checksums.update(block.flip());
+            position += n;
+        }
+        return checksums;
+    }
+
+    /**
+     * The stored checksums of a partition, or null when it has none.
+     */
+    public static int[] load(File partitionFile) throws IOException {
+        File crcFile = fileFor(partitionFile);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(crcFile.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        int[] sums = new int[content.length / 4];
+        ByteBuffer.wrap(content).asIntBuffer().get(sums);
+        return sums;
+    }
+
+    public static int blocks(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * Checks one block of the file, reading it through buffer (at least BLOCK_SIZE bytes).
+     */
+    public static boolean verifyBlock(FileChannel file, int[] sums, int block, ByteBuffer buffer) throws IOException {
+        long position = (long) block * BLOCK_SIZE;
+        buffer.clear().limit(BLOCK_SIZE);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.flip());
+        return (int) crc.getValue() == sums[block];
+    }
+
+    /**
+     * Checks the blocks of the partition overlapping [start, end). True when they all match, or
+     * when the partition has no checksums.
+     */
+    public static boolean verify(File partitionFile, FileChannel file, long start, long end) throws IOException {
+        int[] sums = load(partitionFile);
+        if (sums == null) {
+            return true;
+        }
+        long size = file.size();
+        if (sums.length != blocks(size)) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        for (long block = start / BLOCK_SIZE; block * BLOCK_SIZE < Math.min(end, size); block++) {
+            if (!verifyBlock(file, sums, (int) block, buffer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
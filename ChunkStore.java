@@ -0,0 +1,151 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A slave's store of deduplicated chunks, named by the SHA-256 of their content:
+ * "<root>/chunks/<first 2 hex digits>/<hash>", with its reference count in "<hash>.refs". A
+ * chunk is kept once however many files use it and deleted when its last reference is released.
+ */
+public class ChunkStore {
+    private final File root;
+    private final Object lock = new Object();
+
+    public ChunkStore(String localRoot) {
+        root = new File(localRoot, "chunks");
+    }
+
+    public static String hash(byte[] data) {
+        MessageDigest digest = sha256();
+        return hex(digest.digest(data));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public File file(String hash) {
+        if (hash.length() != 64 || !hash.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            throw new IllegalArgumentException("Invalid chunk hash: " + hash);
+        }
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    private File refsFile(String hash) {
+        File chunk = file(hash);
+        return new File(chunk.getParentFile(), hash + ".refs");
+    }
+
+    private int refs(String hash) throws IOException {
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(refsFile(hash).toPath()), StandardCharsets.UTF_8).trim());
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private void setRefs(String hash, int refs) throws IOException {
+        Path target = refsFile(hash).toPath();
+        Path temporary = target.resolveSibling(hash + ".refs.tmp");
+        Files.write(temporary, String.valueOf(refs).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds a reference to each chunk held here, once per occurrence, and returns the ones that
+     * are missing, to be sent with {@link #store}.
+     */
+    public List<String> ref(List<String> hashes) throws IOException {
+        List<String> missing = new ArrayList<>();
+        synchronized (lock) {
+            for (String hash : hashes) {
+                if (file(hash).exists()) {
+                    setRefs(hash, refs(hash) + 1);
+                } else {
+                    missing.add(hash);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Receives a chunk and adds one reference to it. The content must hash to its name; a chunk
+     * that arrived meanwhile from another upload is kept and this copy dropped.
+     */
+    public boolean store(String hash, DataInputStream in, ReadableByteChannel channel) throws IOException {
+        File chunk = file(hash);
+        chunk.getParentFile().mkdirs();
+        File temporary = File.createTempFile(hash, ".tmp", chunk.getParentFile());
+        try {
+            try (FileChannel file = FileChannel.open(temporary.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ChunkedInputStream.receiveFile(in, channel, file);
+                if (!hash.equals(hash(file))) {
+                    return false;
+                }
+            }
+            synchronized (lock) {
+                if (!chunk.exists()) {
+                    Files.move(temporary.toPath(), chunk.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                setRefs(hash, refs(hash) + 1);
+            }
+            return true;
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Drops one reference per occurrence, deleting the chunks nobody refers to anymore.
+     */
+    public void release(List<String> hashes) throws IOException {
+        synchronized (lock) {
+            for (String hash : hashes) {
+                int refs = refs(hash) - 1;
+                if (refs > 0) {
+                    setRefs(hash, refs);
+                } else {
+                    file(hash).delete();
+                    refsFile(hash).delete();
+                    System.out.println("Deleted chunk: " + hash);
+                }
+            }
+        }
+    }
+
+    // True when the chunk still hashes to its name
+    public boolean verify(String hash, FileChannel file) throws IOException {
+        return hash.equals(hash(file));
+    }
+
+    private static String hash(FileChannel file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int n;
+        while ((n = file.read(buffer.clear(), position)) > 0) {
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+        return hex(digest.digest());
+    }
+}
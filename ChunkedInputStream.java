@@ -0,0 +1,106 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * Reads the frames written by {@link ChunkedOutputStream} until the end marker.
+ * Closing the stream skips any unread frames but leaves the underlying socket open.
+ */
+public class ChunkedInputStream extends InputStream {
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final DataInputStream in;
+    private int remaining;
+    private boolean finished;
+
+    public ChunkedInputStream(InputStream in) {
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+    }
+
+    private boolean nextFrame() throws IOException {
+        while (remaining == 0) {
+            if (finished) {
+                return false;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk length: " + length);
+            }
+            if (length == 0) {
+                finished = true;
+                return false;
+            }
+            remaining = length;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextFrame()) {
+            return -1;
+        }
+        remaining--;
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextFrame()) {
+            return -1;
+        }
+        int n = in.read(b, off, Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Connection closed inside a chunk");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(remaining, in.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        byte[] skip = new byte[8192];
+        while (read(skip, 0, skip.length) >= 0) {
+        }
+    }
+
+    /**
+     * Receives frames straight into a file with transferFrom. {@code in} must not buffer ahead of
+     * {@code channel}, since only the frame headers are read through it. Returns the bytes written.
+     */
+    public static long receiveFile(DataInputStream in, ReadableByteChannel channel, FileChannel file) throws IOException {
+        return receiveFile(in, channel, file, 0);
+    }
+
+    /**
+     * Same, writing from {@code start} on, so several streams can fill one file side by side.
+     */
+    public static long receiveFile(DataInputStream in, ReadableByteChannel channel, FileChannel file, long start) throws IOException {
+        long position = start;
+        int length;
+        while ((length = in.readInt()) != 0) {
+            if (length < 0 || length > MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk length: " + length);
+            }
+            long received = 0;
+            while (received < length) {
+                long n = file.transferFrom(channel, position + received, length - received);
+                if (n <= 0) {
+                    throw new EOFException("Connection closed inside a chunk");
+                }
+                received += n;
+            }
+            position += length;
+        }
+        return position - start;
+    }
+}
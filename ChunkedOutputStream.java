@@ -0,0 +1,100 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * Writes a byte stream as length-prefixed frames: [int length][bytes]... [int 0].
+ * Closing the stream writes the end marker but leaves the underlying socket open.
+ */
+public class ChunkedOutputStream extends OutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] frame;
+    private int count;
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > ChunkedInputStream.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.out = out;
+        this.frame = new byte[4 + chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == frame.length - 4) {
+            flushFrame();
+        }
+        frame[4 + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, frame.length - 4 - count);
+            System.arraycopy(b, off, frame, 4 + count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == frame.length - 4) {
+                flushFrame();
+            }
+        }
+    }
+
+    private void flushFrame() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        frame[0] = (byte) (count >>> 24);
+        frame[1] = (byte) (count >>> 16);
+        frame[2] = (byte) (count >>> 8);
+        frame[3] = (byte) count;
+        out.write(frame, 0, 4 + count);
+        count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushFrame();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        flushFrame();
+        out.write(new byte[4]);
+        out.flush();
+    }
+
+    /**
+     * Sends a region of a file as frames without copying it through the heap: each frame header
+     * goes through {@code out}, the payload goes from the file to the socket with transferTo.
+     */
+    public static void sendFile(FileChannel file, long position, long count, DataOutputStream out, WritableByteChannel channel) throws IOException {
+        while (count > 0) {
+            int length = (int) Math.min(count, ChunkedInputStream.MAX_CHUNK_SIZE);
+            out.writeInt(length);
+            out.flush();
+            long sent = 0;
+            while (sent < length) {
+                long n = file.transferTo(position + sent, length - sent, channel);
+                if (n <= 0) {
+                    throw new EOFException("File ended before " + length + " bytes were sent");
+                }
+                sent += n;
+            }
+            position += length;
+            count -= length;
+        }
+        out.writeInt(0);
+        out.flush();
+    }
+}
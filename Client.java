@@ -2,106 +2,569 @@ package client;
 
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import server.Catalog;
+import server.Checksums;
+import server.ChecksummedInputStream;
+import server.ChunkedInputStream;
+import server.ChunkedOutputStream;
+import server.Codec;
 
 public class Client {
     private String ipMaster;
     private int portMaster;
+    // In direct mode the master only hands out locations and placements; file bytes go straight to the slaves
+    private boolean direct;
+    private int streams = 4;
+    // Asked of the master on put; null leaves the choice to the master
+    private String codec;
+    // Puts in the master's dedup mode, only chunks the slaves do not have yet are stored
+    private boolean dedup;
+    // Direct reads split partitions into ranges of at most this size, one stream each
+    static final long RANGE_SIZE = 8 * 1024 * 1024;
+    // Puts sent ahead of their replies by mput
+    static final int PIPELINE_WINDOW = 16;
+    // Names per mget/mrm command, within the length writeUTF allows
+    static final int BATCH_NAMES = 256;
+    static final int BATCH_BYTES = 60000;
+
+    // One connection to the master carries every command; it is reopened after an error.
+    // sessionIn is not buffered, so file frames can be read from the channel after it.
+    private SocketChannel session;
+    private DataInputStream sessionIn;
+    private DataOutputStream sessionOut;
 
     public void connect(String ip, int port) {
-        try (Socket socket = new Socket(ip, port);
-             DataInputStream in = new DataInputStream(socket.getInputStream());
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-                out.writeUTF("connect");
-                this.ipMaster = ip;
-                this.portMaster = port;
-                System.out.println("Connected to master at " + ip + ":" + port);
+        closeSession();
+        this.ipMaster = ip;
+        this.portMaster = port;
+        try {
+            openSession();
+            sessionOut.writeUTF("connect");
+            sessionOut.flush();
+            System.out.println("Connected to master at " + ip + ":" + port);
         } catch (IOException e) {
+            closeSession();
+            this.ipMaster = null;
+            this.portMaster = 0;
             System.out.println("No path to the server.");
         }
     }
 
+    private void openSession() throws IOException {
+        if (session != null) {
+            return;
+        }
+        session = SocketChannel.open(new InetSocketAddress(ipMaster, portMaster));
+        session.socket().setTcpNoDelay(true);
+        sessionIn = new DataInputStream(session.socket().getInputStream());
+        sessionOut = new DataOutputStream(new BufferedOutputStream(session.socket().getOutputStream()));
+    }
+
+    void closeSession() {
+        if (session != null) {
+            try {
+                session.close();
+            } catch (IOException e) {
+            }
+            session = null;
+            sessionIn = null;
+            sessionOut = null;
+        }
+    }
+
     public void ls() {
+        list("ls");
+    }
+
+    public void stats() {
+        list("stats");
+    }
+
+    // Prints the lines of a listing command until END_OF_RESPONSE
+    private void list(String command) {
         if (ipMaster == null || portMaster == 0) {
             System.out.println("Not connected to a master. Use 'connect <ip>:<port>' first.");
             return;
         }
     
-        try (Socket socket = new Socket(ipMaster, portMaster);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-    
-            out.writeUTF("ls");
-    
-            String response;
-            while ((response = in.readUTF()) != null) {
-                if (response.equals("END_OF_RESPONSE")) {
-                    break;
-                }
+        try {
+            for (String response : request(command)) {
                 System.out.println(response);
             }
-    
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    // Sends a command to the master and returns its reply lines, up to END_OF_RESPONSE
+    private List<String> request(String command) throws IOException {
+        try {
+            openSession();
+            sessionOut.writeUTF(command);
+            sessionOut.flush();
+            List<String> lines = new ArrayList<>();
+            String response;
+            while (!(response = sessionIn.readUTF()).equals("END_OF_RESPONSE")) {
+                lines.add(response);
+            }
+            return lines;
+        } catch (IOException e) {
+            closeSession();
+            throw e;
+        }
+    }
+
+    // A command followed by one frame per line and "END", then its reply lines
+    private List<String> commit(String command, List<String> lines) throws IOException {
+        try {
+            openSession();
+            sessionOut.writeUTF(command);
+            for (String line : lines) {
+                sessionOut.writeUTF(line);
+            }
+            sessionOut.writeUTF("END");
+            sessionOut.flush();
+            return readReply();
+        } catch (IOException e) {
+            closeSession();
+            throw e;
+        }
+    }
+
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+        System.out.println(direct ? "Direct mode: data goes straight to the slaves." : "Proxy mode: data goes through the master.");
+    }
     
     public void get(String fileName, String destination) {
+        get(fileName, destination, 0, -1);
+    }
+
+    /**
+     * Saves length bytes of the file from offset, or the whole file when length is -1.
+     */
+    public void get(String fileName, String destination, long offset, long length) {
         if (ipMaster == null || portMaster == 0) {
             System.out.println("Not connected to a master. Use 'connect <ip>:<port>' first.");
             return;
         }
+        if (direct) {
+            getDirect(fileName, destination, offset, length);
+            return;
+        }
     
-        try (Socket socket = new Socket(ipMaster, portMaster);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-    
-            out.writeUTF("get " + fileName + " " + destination);
+        try {
+            openSession();
+            sessionOut.writeUTF("get " + fileName + (length >= 0 ? " " + offset + " " + length : ""));
+            sessionOut.flush();
             System.out.println("Sent 'get' request for file: " + fileName);
-    
-            String response = in.readUTF();
-            if (response.equals("SUCCESS")) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(destination))) {
-                    String line;
-                    while (!(line = in.readUTF()).equals("EOF")) {
-                        writer.write(line);
-                        writer.newLine();
-                    }
-                }
+            receiveFile(destination);
+        } catch (IOException e) {
+            closeSession();
+            e.printStackTrace();
+        }
+    }
+
+    // Reads one get reply from the session into destination
+    private void receiveFile(String destination) throws IOException {
+        String response = sessionIn.readUTF();
+        if (response.equals("SUCCESS")) {
+            // Frames go from the socket to the file with transferFrom, without passing through the heap
+            try (FileChannel file = FileChannel.open(new File(destination).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChunkedInputStream.receiveFile(sessionIn, session, file);
+            }
+            String status = sessionIn.readUTF();
+            if (status.equals("EOF")) {
                 System.out.println("File saved to: " + destination);
             } else {
-                System.out.println(response); // Error message
+                new File(destination).delete();
+                System.out.println(status);
             }
-    
-        } catch (IOException e) {
-            e.printStackTrace();
+        } else {
+            System.out.println(response); // Error message
         }
     }
 
     public void upload(String filePath) {
+        upload(filePath, 0);
+    }
+
+    /**
+     * Uploads a file cut into blocks of blockSize bytes, or with the master's default layout when blockSize is 0.
+     */
+    public void upload(String filePath, long blockSize) {
         if (ipMaster == null || portMaster == 0) {
             System.out.println("Not connected to a master. Use 'connect <ip>:<port>' first.");
             return;
         }
+        if (!Catalog.validName(new File(filePath).getName())) {
+            System.out.println("ERROR: Invalid file name: " + new File(filePath).getName());
+            return;
+        }
+        if (direct && !dedup) {
+            uploadDirect(filePath, blockSize);
+            return;
+        }
 
-        try (Socket socket = new Socket(ipMaster, portMaster);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             BufferedReader fileReader = new BufferedReader(new FileReader(filePath))) {
+        try {
+            openSession();
+            sendPut(filePath, blockSize);
+            System.out.println("File content sent to master.");
+            for (String response : readReply()) {
+                System.out.println(response);
+            }
+        } catch (IOException e) {
+            closeSession();
+            System.out.println(ipMaster+" "+portMaster);
+            e.printStackTrace();
+        }
+    }
 
-            out.writeUTF("put " + filePath);
+    // The master only needs the name, the local directories may hold spaces
+    private void sendPut(String filePath, long blockSize) throws IOException {
+        try (FileChannel file = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.READ)) {
+            sessionOut.writeUTF("put " + new File(filePath).getName() + " " + file.size() + (blockSize > 0 ? " " + blockSize : "") + (codec != null ? " codec=" + codec : "")
+                    + (dedup ? " dedup" : ""));
             System.out.println("Sent upload request for file: " + filePath);
 
-            String line;
-            while ((line = fileReader.readLine()) != null) {
-                out.writeUTF(line);
+            // The file goes to the socket with transferTo, framed like any upload
+            ChunkedOutputStream.sendFile(file, 0, file.size(), sessionOut, session);
+        }
+    }
+
+    // The lines of one reply from the session, up to END_OF_RESPONSE
+    private List<String> readReply() throws IOException {
+        List<String> lines = new ArrayList<>();
+        String response;
+        while (!(response = sessionIn.readUTF()).equals("END_OF_RESPONSE")) {
+            lines.add(response);
+        }
+        return lines;
+    }
+
+    /**
+     * Puts every local file matching the glob (e.g. "data/*.log"). Through the master the puts
+     * are pipelined on the session, up to PIPELINE_WINDOW of them ahead of their replies.
+     */
+    public void mput(String pattern) {
+        if (ipMaster == null || portMaster == 0) {
+            System.out.println("Not connected to a master. Use 'connect <ip>:<port>' first.");
+            return;
+        }
+        List<String> files = new ArrayList<>();
+        Path glob = Paths.get(pattern);
+        Path directory = glob.getParent() != null ? glob.getParent() : Paths.get(".");
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.getFileName());
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry) && matcher.matches(entry.getFileName())) {
+                    if (!Catalog.validName(entry.getFileName().toString())) {
+                        System.out.println("Skipping " + entry + ": file names cannot contain spaces or '" + Catalog.VERSION_SEPARATOR + "'");
+                        continue;
+                    }
+                    files.add(glob.getParent() != null ? entry.toString() : entry.getFileName().toString());
+                }
             }
-            out.writeUTF("EOF"); 
-            System.out.println("File content sent to master.");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Collections.sort(files);
+        if (direct && !dedup) {
+            for (String file : files) {
+                uploadDirect(file, 0);
+            }
+            return;
+        }
 
+        int stored = 0;
+        try {
+            openSession();
+            Deque<String> pending = new ArrayDeque<>();
+            for (int i = 0; i < files.size() || !pending.isEmpty(); ) {
+                if (i < files.size() && pending.size() < PIPELINE_WINDOW) {
+                    sendPut(files.get(i), 0);
+                    pending.add(files.get(i++));
+                    continue;
+                }
+                List<String> reply = readReply();
+                String last = reply.isEmpty() ? "" : reply.get(reply.size() - 1);
+                System.out.println(pending.poll() + ": " + last);
+                if (last.startsWith("SUCCESS")) {
+                    stored++;
+                }
+            }
         } catch (IOException e) {
-            System.out.println(ipMaster+" "+portMaster);
+            closeSession();
             e.printStackTrace();
         }
+        System.out.println(stored + "/" + files.size() + " files stored.");
+    }
+
+    /**
+     * Reads the partitions straight from the slaves, streams partitions at a time, each written
+     * at its own offset of the destination. A replica that fails hands over to the next one.
+     */
+    private void getDirect(String fileName, String destination, long offset, long length) {
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        try (FileChannel file = FileChannel.open(new File(destination).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // [VERSION <version>] [CODEC <codec>] then LOCATION <index> <size> <ip:port>,<ip:port>...
+            List<String> locations = request("locate " + fileName);
+            if (!locations.isEmpty() && locations.get(0).startsWith("ERROR")) {
+                System.out.println(locations.get(0));
+                new File(destination).delete();
+                return;
+            }
+            // The slaves know the partitions by the name of their version
+            String storedName = !locations.isEmpty() && locations.get(0).startsWith("VERSION ")
+                    ? Catalog.storedName(fileName, Long.parseLong(locations.remove(0).substring(8))) : fileName;
+            Codec compression = null;
+            if (!locations.isEmpty() && locations.get(0).startsWith("CODEC ")) {
+                compression = Codec.forName(locations.remove(0).substring(6));
+            }
+            System.out.println("Reading " + locations.size() + " partitions of " + fileName + " from the slaves");
+
+            long total = 0;
+            for (String location : locations) {
+                long size = Long.parseLong(location.split(" ")[2]);
+                if (size < 0) {
+                    throw new IOException("Partition sizes of " + fileName + " are unknown, use proxy mode");
+                }
+                total += size;
+            }
+            long end = length < 0 ? total : Math.min(total, offset + length);
+            long start = Math.min(offset, end);
+            // Give the file its final length up front, so every range can be written in place
+            if (end > start) {
+                file.write(ByteBuffer.allocate(1), end - start - 1);
+            }
+
+            List<Future<Void>> reads = new ArrayList<>();
+            long partitionStart = 0;
+            for (String location : locations) {
+                String[] parts = location.split(" ");
+                int index = Integer.parseInt(parts[1]);
+                long size = Long.parseLong(parts[2]);
+                String[] replicas = parts[3].split(",");
+                String chunk = parts.length > 4 ? parts[4] : null;
+                long to = Math.min(partitionStart + size, end);
+                if (compression != null) {
+                    // Compressed partitions are fetched as stored and decoded here, whole
+                    Codec partitionCodec = compression;
+                    long from = Math.max(partitionStart, start);
+                    long skip = from - partitionStart;
+                    if (from < to) {
+                        reads.add(pool.submit(() -> {
+                            byte[] data = partitionCodec.decodeBlocks(readStored(storedName, index, replicas));
+                            ByteBuffer part = ByteBuffer.wrap(data, (int) skip, (int) (to - from));
+                            for (long position = from - start; part.hasRemaining(); ) {
+                                position += file.write(part, position);
+                            }
+                            return null;
+                        }));
+                    }
+                    partitionStart += size;
+                    continue;
+                }
+                for (long from = Math.max(partitionStart, start); from < to; from += RANGE_SIZE) {
+                    long rangeOffset = from - partitionStart;
+                    long rangeLength = Math.min(RANGE_SIZE, to - from);
+                    long filePosition = from - start;
+                    reads.add(pool.submit(() -> {
+                        readRange(storedName, index, chunk, rangeOffset, rangeLength, replicas, file, filePosition);
+                        return null;
+                    }));
+                }
+                partitionStart += size;
+            }
+            for (Future<Void> read : reads) {
+                read.get();
+            }
+            System.out.println("File saved to: " + destination);
+        } catch (ExecutionException | InterruptedException | IOException e) {
+            new File(destination).delete();
+            System.out.println("ERROR: " + (e instanceof ExecutionException ? e.getCause() : e));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // A range of a partition, checked block by block, or of a deduplicated chunk when chunk is set
+    private void readRange(String fileName, int index, String chunk, long offset, long length, String[] replicas, FileChannel file, long position)
+            throws IOException {
+        IOException failure = new IOException("No replica of partition " + index);
+        for (String replica : replicas) {
+            String[] address = replica.split(":");
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(address[0], Integer.parseInt(address[1])))) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+                // Unbuffered, the frame payloads are read from the channel
+                DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                // Slaves echo a request ID before each reply
+                out.writeLong(1);
+                out.writeUTF(chunk != null ? "get_chunk " + chunk + " " + offset + " " + length
+                        : "get_blocks " + fileName + " " + index + " " + offset + " " + length);
+                out.flush();
+                in.readLong();
+                String response = in.readUTF();
+                long received;
+                if (response.startsWith("BLOCKS ")) {
+                    try (InputStream data = ChecksummedInputStream.open(response, in)) {
+                        received = writeAt(data, file, position);
+                    }
+                } else if (response.equals("PARTITION_DATA")) {
+                    received = ChunkedInputStream.receiveFile(in, channel, file, position);
+                } else {
+                    throw new IOException(replica + ": " + response);
+                }
+                if (received != length) {
+                    throw new IOException(replica + ": partition " + index + " is shorter than recorded");
+                }
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static long writeAt(InputStream data, FileChannel file, long position) throws IOException {
+        byte[] buffer = new byte[Checksums.BLOCK_SIZE];
+        long written = 0;
+        int n;
+        while ((n = data.read(buffer)) > 0) {
+            ByteBuffer part = ByteBuffer.wrap(buffer, 0, n);
+            while (part.hasRemaining()) {
+                written += file.write(part, position + written);
+            }
+        }
+        return written;
+    }
+
+    // A whole partition as the slave stores it, checked block by block
+    private byte[] readStored(String fileName, int index, String[] replicas) throws IOException {
+        IOException failure = new IOException("No replica of partition " + index);
+        for (String replica : replicas) {
+            String[] address = replica.split(":");
+            try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeLong(1);
+                out.writeUTF("get_blocks " + fileName + " " + index + " 0 -1");
+                out.flush();
+                in.readLong();
+                String response = in.readUTF();
+                if (!response.startsWith("BLOCKS ")) {
+                    throw new IOException(replica + ": " + response);
+                }
+                try (InputStream data = ChecksummedInputStream.open(response, in)) {
+                    return data.readAllBytes();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Asks the master for a placement, streams every partition to the head of its replication
+     * chain in parallel, then commits the acknowledged locations to the master.
+     */
+    private void uploadDirect(String filePath, long blockSize) {
+        File source = new File(filePath);
+        String fileName = source.getName();
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        try (FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            // VERSION <version> [CODEC <codec>] then PLAN <index> <offset> <length> <ip:port>,<ip:port>...
+            List<String> plan = request("plan " + fileName + " " + file.size() + (blockSize > 0 ? " " + blockSize : "")
+                    + (codec != null ? " codec=" + codec : ""));
+            if (!plan.isEmpty() && plan.get(0).startsWith("ERROR")) {
+                System.out.println(plan.get(0));
+                return;
+            }
+            long version = !plan.isEmpty() && plan.get(0).startsWith("VERSION ") ? Long.parseLong(plan.remove(0).substring(8)) : 0;
+            String storedName = Catalog.storedName(fileName, version);
+            Codec compression = !plan.isEmpty() && plan.get(0).startsWith("CODEC ") ? Codec.forName(plan.remove(0).substring(6)) : null;
+
+            List<Future<String>> writes = new ArrayList<>();
+            for (String step : plan) {
+                String[] parts = step.split(" ");
+                int index = Integer.parseInt(parts[1]);
+                long offset = Long.parseLong(parts[2]);
+                long length = Long.parseLong(parts[3]);
+                String[] chain = parts[4].split(",");
+                writes.add(pool.submit(() -> writePartition(storedName, index, chain, file, offset, length, compression)));
+            }
+            // One frame per partition: a file with many partitions would not fit in one command
+            List<String> commit = new ArrayList<>();
+            for (int i = 0; i < writes.size(); i++) {
+                String storedOn = writes.get(i).get();
+                System.out.println("Partition " + i + ": stored on " + storedOn);
+                commit.add(i + ":" + plan.get(i).split(" ")[3] + ":" + storedOn);
+            }
+            for (String response : commit("commit " + fileName + (compression != null ? " codec=" + compression.name() : "")
+                    + (version != 0 ? " v=" + version : ""), commit)) {
+                System.out.println(response);
+            }
+        } catch (ExecutionException | InterruptedException | IOException e) {
+            System.out.println("ERROR: File " + fileName + " was not stored (" + (e instanceof ExecutionException ? e.getCause() : e) + ")");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Returns the acknowledged replicas as "ip:port,ip:port..."
+    private String writePartition(String fileName, int index, String[] chain, FileChannel file, long offset, long length, Codec compression)
+            throws IOException {
+        String[] address = chain[0].split(":");
+        String rest = chain.length > 1 ? String.join(",", Arrays.copyOfRange(chain, 1, chain.length)) : ",";
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(address[0], Integer.parseInt(address[1])))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            out.writeLong(1);
+            out.writeUTF("partition " + fileName + " " + index + " " + rest);
+            if (compression == null) {
+                ChunkedOutputStream.sendFile(file, offset, length, out, channel);
+            } else {
+                // Each chunk of the file becomes one compressed block
+                ChunkedOutputStream partition = new ChunkedOutputStream(out, ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+                DataOutputStream blocks = new DataOutputStream(partition);
+                ByteBuffer chunk = ByteBuffer.allocate(ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+                for (long position = offset; position < offset + length; ) {
+                    chunk.clear().limit((int) Math.min(chunk.capacity(), offset + length - position));
+                    int n = file.read(chunk, position);
+                    if (n < 0) {
+                        throw new EOFException("File ended before " + length + " bytes were sent");
+                    }
+                    compression.writeBlock(chunk.array(), 0, n, blocks);
+                    position += n;
+                }
+                partition.close();
+            }
+
+            // "ACK:ip:port:file:index" from each node of the chain, head first
+            in.readLong();
+            StringJoiner acked = new StringJoiner(",");
+            for (int i = 0; i < chain.length; i++) {
+                String reply = in.readUTF();
+                if (!reply.startsWith("ACK:")) {
+                    throw new IOException(reply);
+                }
+                String[] parts = reply.split(":");
+                acked.add(parts[1] + ":" + parts[2]);
+            }
+            return acked.toString();
+        }
     }
 
     public void rm(String fileName) {
@@ -110,28 +573,117 @@ public class Client {
             return;
         }
     
-        try (Socket socket = new Socket(ipMaster, portMaster);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-    
-            out.writeUTF("rm " + fileName);
+        try {
+            openSession();
+            sessionOut.writeUTF("rm " + fileName);
+            sessionOut.flush();
             System.out.println("Sent 'rm' request for file: " + fileName);
     
-            String response = in.readUTF();
+            String response = sessionIn.readUTF();
             System.out.println(response);
     
         } catch (IOException e) {
+            closeSession();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Saves every registered file matching the glob into destDir, under its own name.
+     */
+    public void mget(String pattern, String destDir) {
+        if (ipMaster == null || portMaster == 0) {
+            System.out.println("Not connected to a master. Use 'connect <ip>:<port>' first.");
+            return;
+        }
+        try {
+            new File(destDir).mkdirs();
+            List<String> names = request("find " + pattern);
+            if (direct) {
+                for (String name : names) {
+                    getDirect(name, new File(destDir, name).getPath(), 0, -1);
+                }
+                return;
+            }
+            for (List<String> batch : batches(names)) {
+                sessionOut.writeUTF("mget " + String.join(" ", batch));
+                sessionOut.flush();
+                for (String name : batch) {
+                    receiveFile(new File(destDir, name).getPath());
+                }
+            }
+            System.out.println(names.size() + " files matched.");
+        } catch (IOException e) {
+            closeSession();
             e.printStackTrace();
         }
     }
 
+    /**
+     * Removes every registered file matching the glob.
+     */
+    public void mrm(String pattern) {
+        if (ipMaster == null || portMaster == 0) {
+            System.out.println("Not connected to a master. Use 'connect <ip>:<port>' first.");
+            return;
+        }
+        try {
+            List<String> names = request("find " + pattern);
+            for (List<String> batch : batches(names)) {
+                sessionOut.writeUTF("mrm " + String.join(" ", batch));
+                sessionOut.flush();
+                for (int i = 0; i < batch.size(); i++) {
+                    System.out.println(sessionIn.readUTF());
+                }
+            }
+            System.out.println(names.size() + " files matched.");
+        } catch (IOException e) {
+            closeSession();
+            e.printStackTrace();
+        }
+    }
+
+    private static int utfLength(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Splits names into groups that each fit in one command
+    private static List<List<String>> batches(List<String> names) {
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int bytes = 0;
+        for (String name : names) {
+            if (!batch.isEmpty() && (batch.size() == BATCH_NAMES || bytes + utfLength(name) + 1 > BATCH_BYTES)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                bytes = 0;
+            }
+            batch.add(name);
+            bytes += utfLength(name) + 1;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
     static void displayHelp() {
         System.out.println("List of command:");
         System.out.println("    -ls: List the master registered files");
+        System.out.println("    -stats: show the master cache metrics and the slaves' last heartbeats");
         System.out.println("    -rm <file>: delete a registered file and its partitions");
         System.out.println("    -put <file>: store and partition loacal file to slave");
+        System.out.println("    -put <file> <blockSize>: store a local file as fixed-size blocks spread over the slaves");
         System.out.println("    -get <file> <destination>: recover a partitionned file");
+        System.out.println("    -get <file> <destination> <offset> <length>: save only length bytes of the file from offset");
+        System.out.println("    -mput <glob>: store every local file matching the pattern, e.g. mput logs/*.txt");
+        System.out.println("    -mget <glob> <directory>: recover every registered file matching the pattern into a directory");
+        System.out.println("    -mrm <glob>: delete every registered file matching the pattern");
         System.out.println("    -connect <ip>:<port>: connect to a master server");
+        System.out.println("    -streams <n>: number of parallel slave streams in direct mode (default 4)");
+        System.out.println("    -codec <none|deflate|gzip>: compress the chunks of the next puts (default: the master's codec)");
+        System.out.println("    -dedup on|off: store the next puts as deduplicated chunks, sending only the ones the slaves lack (through the master)");
+        System.out.println("    -direct on|off: move file data between the client and the slaves directly, the master only keeps metadata");
     }
 
     public static void main(String[] args) {
@@ -150,17 +702,38 @@ public class Client {
                 client.connect(address[0], Integer.parseInt(address[1]));
             } else if (parts[0].equals("put") && parts.length == 2) {
                 client.upload(parts[1]);
+            } else if (parts[0].equals("put") && parts.length == 3) {
+                client.upload(parts[1], Long.parseLong(parts[2]));
             } else if (parts[0].equals("help")) {
                 displayHelp();
             } else if (parts[0].equals("ls")) {
                 client.ls();
+            } else if (parts[0].equals("streams") && parts.length == 2) {
+                client.streams = Math.max(1, Integer.parseInt(parts[1]));
+            } else if (parts[0].equals("dedup") && parts.length == 2) {
+                client.dedup = parts[1].equals("on");
+            } else if (parts[0].equals("codec") && parts.length == 2) {
+                client.codec = parts[1];
+            } else if (parts[0].equals("direct") && parts.length == 2) {
+                client.setDirect(parts[1].equals("on"));
+            } else if (parts[0].equals("stats")) {
+                client.stats();
             } else if (parts[0].equals("exit")) {
+                client.closeSession();
                 scanner.close();
                 break;
             } else if (parts[0].equals("get") && parts.length == 3) {
                 client.get(parts[1], parts[2]);
+            } else if (parts[0].equals("get") && parts.length == 5) {
+                client.get(parts[1], parts[2], Long.parseLong(parts[3]), Long.parseLong(parts[4]));
             } else if (parts[0].equals("rm") && parts.length == 2) {
                 client.rm(parts[1]);
+            } else if (parts[0].equals("mput") && parts.length == 2) {
+                client.mput(parts[1]);
+            } else if (parts[0].equals("mget") && parts.length == 3) {
+                client.mget(parts[1], parts[2]);
+            } else if (parts[0].equals("mrm") && parts.length == 2) {
+                client.mrm(parts[1]);
             } else {
                 System.out.println("Invalid command.");
             } 
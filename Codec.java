@@ -0,0 +1,182 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.*;
+
+/**
+ * Compresses partitions chunk by chunk. A compressed partition is stored on the slaves as one
+ * block per upload chunk, [int raw length][int stored length][stored bytes], so it decodes as it
+ * streams; the slaves keep and serve those bytes as they are. A block that would not shrink is
+ * stored raw, its stored length equal to its raw length. Files put with "none" keep the plain
+ * layout. More codecs (LZ4, Zstd...) plug in through {@link #register}.
+ */
+public abstract class Codec {
+    public static final String NONE = "none";
+
+    private static final Map<String, Codec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new Deflate());
+        register(new Gzip());
+    }
+
+    public static void register(Codec codec) {
+        CODECS.put(codec.name(), codec);
+    }
+
+    public static Codec forName(String name) {
+        Codec codec = CODECS.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+        return codec;
+    }
+
+    // The registered codecs, "none" aside
+    public static Set<String> names() {
+        return new TreeSet<>(CODECS.keySet());
+    }
+
+    // "none" or a registered codec
+    public static boolean isKnown(String name) {
+        return name.equals(NONE) || CODECS.containsKey(name);
+    }
+
+    public abstract String name();
+
+    public abstract byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    public abstract byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException;
+
+    public void writeBlock(byte[] data, int offset, int length, DataOutputStream out) throws IOException {
+        byte[] compressed = compress(data, offset, length);
+        out.writeInt(length);
+        if (compressed.length < length) {
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        } else {
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+    }
+
+    // A whole encoded block, ready to be sent as a chunk
+    public byte[] encodeBlock(byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(length + 8);
+        writeBlock(data, offset, length, new DataOutputStream(block));
+        return block.toByteArray();
+    }
+
+    /**
+     * Decodes a stored partition back to its raw bytes.
+     */
+    public byte[] decodeBlocks(byte[] stored) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(stored.length * 2);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored));
+        byte[] block;
+        while ((block = readBlock(in)) != null) {
+            raw.write(block);
+        }
+        return raw.toByteArray();
+    }
+
+    /**
+     * Reads and decodes the next block of a stored partition, or returns null at its end, so a
+     * partition can be decoded as it streams in.
+     */
+    public byte[] readBlock(DataInputStream in) throws IOException {
+        int rawLength;
+        try {
+            rawLength = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int storedLength = in.readInt();
+        if (rawLength < 0 || storedLength < 0 || rawLength > ChunkedInputStream.MAX_CHUNK_SIZE || storedLength > ChunkedInputStream.MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid " + name() + " block: " + rawLength + "/" + storedLength + " bytes");
+        }
+        byte[] stored = in.readNBytes(storedLength);
+        if (stored.length != storedLength) {
+            throw new EOFException("Truncated " + name() + " block");
+        }
+        return storedLength == rawLength ? stored : decompress(stored, 0, storedLength, rawLength);
+    }
+
+    static class Deflate extends Codec {
+        @Override
+        public String name() {
+            return "deflate";
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int offset, int length) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset, length);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, n, rawLength - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != rawLength) {
+                    throw new IOException("Truncated deflate block");
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    static class Gzip extends Codec {
+        @Override
+        public String name() {
+            return "gzip";
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int offset, int length) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data, offset, length);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+            try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data, offset, length))) {
+                byte[] raw = gzip.readNBytes(rawLength);
+                if (raw.length != rawLength) {
+                    throw new IOException("Truncated gzip block");
+                }
+                return raw;
+            }
+        }
+    }
+}
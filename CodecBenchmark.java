@@ -0,0 +1,111 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares the registered codecs on the block layout partitions are stored in: for each data set
+ * the stored size against the raw size, the wall-clock throughput of encoding and decoding, and
+ * the CPU time spent per MB, so the cost of a codec can be weighed against the bytes it saves on
+ * the network and the disks. Every run is decoded back and checked against its input. Without
+ * arguments it uses generated text, log lines and random bytes; otherwise the given files.
+ * Usage: java server.CodecBenchmark [sizeMB | file...]
+ */
+public class CodecBenchmark {
+    static final int ROUNDS = 5;
+    static final double MB = 1 << 20;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, byte[]> sets = new LinkedHashMap<>();
+        if (args.length > 0 && !args[0].matches("\\d+")) {
+            for (String file : args) {
+                sets.put(Paths.get(file).getFileName().toString(), Files.readAllBytes(Paths.get(file)));
+            }
+        } else {
+            int size = (args.length > 0 ? Integer.parseInt(args[0]) : 32) << 20;
+            sets.put("text", text(size));
+            sets.put("logs", logs(size));
+            sets.put("random", random(size));
+        }
+        int blockSize = ChunkedOutputStream.DEFAULT_CHUNK_SIZE;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println("Blocks of " + blockSize + " bytes, best of " + ROUNDS + " rounds");
+        System.out.printf("%-12s %-8s %7s %11s %11s %11s %11s%n", "data", "codec", "ratio", "enc MB/s", "dec MB/s", "enc cpu/MB", "dec cpu/MB");
+        for (Map.Entry<String, byte[]> set : sets.entrySet()) {
+            byte[] raw = set.getValue();
+            for (String name : Codec.names()) {
+                Codec codec = Codec.forName(name);
+                byte[] stored = null;
+                long encodeWall = Long.MAX_VALUE;
+                long encodeCpu = Long.MAX_VALUE;
+                long decodeWall = Long.MAX_VALUE;
+                long decodeCpu = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long wall = System.nanoTime();
+                    long cpu = threads.getCurrentThreadCpuTime();
+                    ByteArrayOutputStream encoded = new ByteArrayOutputStream(raw.length / 2);
+                    DataOutputStream out = new DataOutputStream(encoded);
+                    for (int offset = 0; offset < raw.length; offset += blockSize) {
+                        codec.writeBlock(raw, offset, Math.min(blockSize, raw.length - offset), out);
+                    }
+                    stored = encoded.toByteArray();
+                    encodeCpu = Math.min(encodeCpu, threads.getCurrentThreadCpuTime() - cpu);
+                    encodeWall = Math.min(encodeWall, System.nanoTime() - wall);
+
+                    wall = System.nanoTime();
+                    cpu = threads.getCurrentThreadCpuTime();
+                    byte[] decoded = codec.decodeBlocks(stored);
+                    decodeCpu = Math.min(decodeCpu, threads.getCurrentThreadCpuTime() - cpu);
+                    decodeWall = Math.min(decodeWall, System.nanoTime() - wall);
+                    if (!Arrays.equals(raw, decoded)) {
+                        System.out.println(name + " did not give " + set.getKey() + " back");
+                        System.exit(1);
+                    }
+                }
+                double megabytes = raw.length / MB;
+                System.out.printf("%-12s %-8s %7.3f %11.1f %11.1f %9.2fms %9.2fms%n", set.getKey(), name,
+                        stored.length / (double) raw.length, megabytes / (encodeWall / 1e9), megabytes / (decodeWall / 1e9),
+                        encodeCpu / 1e6 / megabytes, decodeCpu / 1e6 / megabytes);
+            }
+        }
+    }
+
+    // Words drawn from a small vocabulary, skewed like natural text
+    static byte[] text(int size) {
+        String[] words = "the of and a to in is was that for it with as his on be at by had not are but from or have an they which one you were all her she there would their we him been has when who will more no if out so said what up its about into than them can only other new some could time these two may then do first any my now such like our over man me even most made after also did many before must through back years where much your way well down should because each just those people how too little state good very make world still own see men work long get here between both life being under never day same another know while last might us great old year off come since against go came right used take three".split(" ");
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            int pick = (int) (words.length * Math.pow(random.nextDouble(), 3));
+            text.append(words[pick]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    // Timestamped lines with a few recurring messages and changing numbers
+    static byte[] logs(int size) {
+        String[] messages = {"Stored partition", "Registered slave", "Re-replication of partition", "Checksum verified for", "Served get of"};
+        Random random = new Random(2);
+        StringBuilder logs = new StringBuilder(size + 128);
+        long time = 1700000000000L;
+        while (logs.length() < size) {
+            time += random.nextInt(50);
+            logs.append(time).append(" INFO ").append(messages[random.nextInt(messages.length)]).append(' ')
+                    .append(random.nextInt(200)).append(" of file").append(random.nextInt(1000)).append(".txt on 127.0.0.1:")
+                    .append(9081 + random.nextInt(4)).append('\n');
+        }
+        return Arrays.copyOf(logs.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    // Already compressed or encrypted data, which every codec should store raw
+    static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,443 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Small partitions packed into shared container files, "<root>/containers/pack-<n>.dat", instead
+ * of one file each. Partitions are appended to the newest container until it reaches
+ * containerSize; "index.log" records where each one lands (offset, length and CRC32C), and is
+ * replayed then rewritten compactly at startup and after each compaction. A put or remove is on
+ * disk, data then record, before it returns. A read is a single positioned read of the slot.
+ * Space left by deleted partitions is taken back by {@link #compact}.
+ */
+public class ContainerStore {
+    // Returned by read for a slot that no longer matches its checksum
+    public static final byte[] CORRUPT = new byte[0];
+
+    static class Slot {
+        final int container;
+        final long offset;
+        final int length;
+        final int crc;
+
+        Slot(int container, long offset, int length, int crc) {
+            this.container = container;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private final File root;
+    private final long containerSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Map<Integer, Slot>> slots = new HashMap<>();
+    private final Map<Integer, FileChannel> containers = new HashMap<>();
+    // Bytes of each container still referenced by a slot
+    private final Map<Integer, Long> live = new HashMap<>();
+    // Containers compact is emptying, deleted by it alone
+    private final Set<Integer> compacting = new HashSet<>();
+    private FileChannel index;
+    private int active;
+
+    public ContainerStore(String localRoot, long containerSize) {
+        root = new File(localRoot, "containers");
+        this.containerSize = containerSize;
+    }
+
+    /**
+     * Replays the index, drops the slots past the end of their container (a crash between the
+     * data and its record) and the containers nobody refers to, then rewrites the index.
+     */
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            root.mkdirs();
+            Path indexFile = new File(root, "index.log").toPath();
+            if (Files.exists(indexFile)) {
+                for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                    apply(line);
+                }
+            }
+            File[] packs = root.listFiles((dir, name) -> name.startsWith("pack-") && name.endsWith(".dat"));
+            if (packs != null) {
+                for (File pack : packs) {
+                    int number = Integer.parseInt(pack.getName().substring(5, pack.getName().length() - 4));
+                    active = Math.max(active, number);
+                    containers.put(number, FileChannel.open(pack.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+                }
+            }
+            for (Map<Integer, Slot> partitions : slots.values()) {
+                partitions.values().removeIf(slot -> !containers.containsKey(slot.container)
+                        || slot.offset + slot.length > size(containers.get(slot.container)));
+            }
+            slots.values().removeIf(Map::isEmpty);
+            for (Map<Integer, Slot> partitions : slots.values()) {
+                for (Slot slot : partitions.values()) {
+                    live.merge(slot.container, (long) slot.length, Long::sum);
+                }
+            }
+            for (Integer number : new ArrayList<>(containers.keySet())) {
+                if (number != active && !live.containsKey(number)) {
+                    deleteContainer(number);
+                }
+            }
+            rewriteIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // One record per live slot, swapped in atomically for the log replayed so far
+    private void rewriteIndex() throws IOException {
+        Path indexFile = new File(root, "index.log").toPath();
+        Path temporary = indexFile.resolveSibling("index.log.tmp");
+        try (FileChannel writer = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder records = new StringBuilder();
+            for (Map.Entry<String, Map<Integer, Slot>> file : slots.entrySet()) {
+                for (Map.Entry<Integer, Slot> partition : file.getValue().entrySet()) {
+                    records.append(record(file.getKey(), partition.getKey(), partition.getValue()));
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                writer.write(buffer);
+            }
+            writer.force(true);
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (index != null) {
+            index.close();
+        }
+        index = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // PACK <index> <container> <offset> <length> <crc> <file> | UNPACK <index> <file>
+    private void apply(String line) {
+        String[] parts = line.split(" ", 7);
+        try {
+            if (parts[0].equals("PACK") && parts.length == 7) {
+                Slot slot = new Slot(Integer.parseInt(parts[2]), Long.parseLong(parts[3]), Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+                slots.computeIfAbsent(parts[6], k -> new HashMap<>()).put(Integer.parseInt(parts[1]), slot);
+            } else if (parts[0].equals("UNPACK") && parts.length == 3) {
+                Map<Integer, Slot> partitions = slots.get(parts[2]);
+                if (partitions != null) {
+                    partitions.remove(Integer.parseInt(parts[1]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            // A record torn by a crash
+        }
+    }
+
+    private static String record(String fileName, int partitionIndex, Slot slot) {
+        return "PACK " + partitionIndex + " " + slot.container + " " + slot.offset + " " + slot.length + " " + slot.crc + " " + fileName + "\n";
+    }
+
+    private void log(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            index.write(buffer);
+        }
+    }
+
+    private static long size(FileChannel container) {
+        try {
+            return container.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Appends a partition to the active container, replacing any earlier copy of it.
+     */
+    public void put(String fileName, int partitionIndex, byte[] data) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        lock.writeLock().lock();
+        try {
+            Slot slot = append(data, (int) crc.getValue());
+            containers.get(slot.container).force(false);
+            log(record(fileName, partitionIndex, slot));
+            index.force(false);
+            release(slots.computeIfAbsent(fileName, k -> new HashMap<>()).put(partitionIndex, slot));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Slot append(byte[] data, int crc) throws IOException {
+        FileChannel container = containers.get(active);
+        if (container == null || container.size() >= containerSize) {
+            active++;
+            container = FileChannel.open(new File(root, "pack-" + active + ".dat").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            containers.put(active, container);
+        }
+        long offset = container.size();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            container.write(buffer, offset + buffer.position());
+        }
+        live.merge(active, (long) data.length, Long::sum);
+        return new Slot(active, offset, data.length, crc);
+    }
+
+    // Gives back the space of a slot that was replaced or removed
+    private void release(Slot slot) throws IOException {
+        if (slot == null) {
+            return;
+        }
+        long remaining = live.merge(slot.container, (long) -slot.length, Long::sum);
+        if (remaining <= 0 && slot.container != active && !compacting.contains(slot.container)) {
+            deleteContainer(slot.container);
+        }
+    }
+
+    private void deleteContainer(int number) throws IOException {
+        FileChannel container = containers.remove(number);
+        if (container != null) {
+            container.close();
+        }
+        live.remove(number);
+        new File(root, "pack-" + number + ".dat").delete();
+    }
+
+    public boolean contains(String fileName, int partitionIndex) {
+        lock.readLock().lock();
+        try {
+            Map<Integer, Slot> partitions = slots.get(fileName);
+            return partitions != null && partitions.containsKey(partitionIndex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The partition's bytes in one positioned read, null when it is not packed here, or
+     * {@link #CORRUPT} when they no longer match their checksum.
+     */
+    public byte[] read(String fileName, int partitionIndex) throws IOException {
+        lock.readLock().lock();
+        try {
+            Map<Integer, Slot> partitions = slots.get(fileName);
+            Slot slot = partitions == null ? null : partitions.get(partitionIndex);
+            if (slot == null) {
+                return null;
+            }
+            byte[] data = readSlot(slot);
+            if (data == null) {
+                return CORRUPT;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(data);
+            return (int) crc.getValue() == slot.crc ? data : CORRUPT;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Null when the container ends before the slot does
+    private byte[] readSlot(Slot slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(slot.length);
+        FileChannel container = containers.get(slot.container);
+        while (buffer.hasRemaining()) {
+            if (container.read(buffer, slot.offset + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return buffer.array();
+    }
+
+    public boolean remove(String fileName, int partitionIndex) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Map<Integer, Slot> partitions = slots.get(fileName);
+            Slot slot = partitions == null ? null : partitions.remove(partitionIndex);
+            if (slot == null) {
+                return false;
+            }
+            if (partitions.isEmpty()) {
+                slots.remove(fileName);
+            }
+            log("UNPACK " + partitionIndex + " " + fileName + "\n");
+            index.force(false);
+            release(slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Removes every packed partition of the file and returns their indexes
+    public List<Integer> removeFile(String fileName) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Map<Integer, Slot> partitions = slots.remove(fileName);
+            if (partitions == null) {
+                return Collections.emptyList();
+            }
+            for (Map.Entry<Integer, Slot> partition : partitions.entrySet()) {
+                log("UNPACK " + partition.getKey() + " " + fileName + "\n");
+            }
+            index.force(false);
+            for (Slot slot : partitions.values()) {
+                release(slot);
+            }
+            return new ArrayList<>(partitions.keySet());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // "<file>:<index>" of every packed partition, for the scrubber
+    public List<String> partitions() {
+        lock.readLock().lock();
+        try {
+            List<String> partitions = new ArrayList<>();
+            for (Map.Entry<String, Map<Integer, Slot>> file : slots.entrySet()) {
+                for (Integer partitionIndex : file.getValue().keySet()) {
+                    partitions.add(file.getKey() + ":" + partitionIndex);
+                }
+            }
+            return partitions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // "<index> <size> <crc> <file>" of every packed partition, as reported to the master
+    public List<String> inventory() {
+        lock.readLock().lock();
+        try {
+            List<String> inventory = new ArrayList<>();
+            for (Map.Entry<String, Map<Integer, Slot>> file : slots.entrySet()) {
+                for (Map.Entry<Integer, Slot> partition : file.getValue().entrySet()) {
+                    inventory.add(partition.getKey() + " " + partition.getValue().length + " " + partition.getValue().crc + " " + file.getKey());
+                }
+            }
+            return inventory;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the partitions of every full container that is less than half in use to the active
+     * one, then deletes it once the moves are on disk, and returns the numbers of the containers
+     * deleted. Each slot is read under the read lock only; the write lock is taken just to append
+     * the copy and switch the slot over, and a slot replaced or removed meanwhile is left alone.
+     * The index is rewritten afterwards, so its log does not grow with every move.
+     */
+    public List<Integer> compact() throws IOException {
+        List<Integer> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Integer number : containers.keySet()) {
+                if (number != active && live.getOrDefault(number, 0L) * 2 < size(containers.get(number))) {
+                    candidates.add(number);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Integer> compacted = new ArrayList<>();
+        for (Integer number : candidates) {
+            Map<Slot, Map.Entry<String, Integer>> owners = new HashMap<>();
+            Set<Integer> written = new HashSet<>();
+            lock.writeLock().lock();
+            try {
+                if (!containers.containsKey(number)) {
+                    continue;
+                }
+                // Kept until the moves are forced, whatever the removes in between
+                compacting.add(number);
+                for (Map.Entry<String, Map<Integer, Slot>> file : slots.entrySet()) {
+                    for (Map.Entry<Integer, Slot> partition : file.getValue().entrySet()) {
+                        if (partition.getValue().container == number) {
+                            owners.put(partition.getValue(), Map.entry(file.getKey(), partition.getKey()));
+                        }
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            for (Map.Entry<Slot, Map.Entry<String, Integer>> owner : owners.entrySet()) {
+                Slot slot = owner.getKey();
+                byte[] data;
+                lock.readLock().lock();
+                try {
+                    if (!isCurrent(owner.getValue().getKey(), owner.getValue().getValue(), slot)) {
+                        continue;
+                    }
+                    data = readSlot(slot);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (data == null) {
+                    data = new byte[slot.length]; // Truncated: moved as is, reported corrupt on its next read
+                }
+                lock.writeLock().lock();
+                try {
+                    String fileName = owner.getValue().getKey();
+                    int partitionIndex = owner.getValue().getValue();
+                    if (isCurrent(fileName, partitionIndex, slot)) {
+                        Slot moved = append(data, slot.crc);
+                        log(record(fileName, partitionIndex, moved));
+                        slots.get(fileName).put(partitionIndex, moved);
+                        live.merge(number, (long) -slot.length, Long::sum);
+                        written.add(moved.container);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            // Readers go on while the copies reach the disk; only deletes wait
+            lock.readLock().lock();
+            try {
+                for (Integer container : written) {
+                    if (containers.containsKey(container)) {
+                        containers.get(container).force(false);
+                    }
+                }
+                index.force(false);
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                compacting.remove(number);
+                deleteContainer(number);
+                compacted.add(number);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (!compacted.isEmpty()) {
+            lock.writeLock().lock();
+            try {
+                rewriteIndex();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return compacted;
+    }
+
+    private boolean isCurrent(String fileName, int partitionIndex, Slot slot) {
+        Map<Integer, Slot> partitions = slots.get(fileName);
+        return partitions != null && partitions.get(partitionIndex) == slot;
+    }
+}
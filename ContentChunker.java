@@ -0,0 +1,65 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Cuts a stream into content-defined chunks with a gear rolling hash: a cut falls where the hash
+ * of the last 64 bytes has its top 16 bits clear, so an edit only changes the chunks around it
+ * and the rest of a new version cuts exactly as before. Chunks are 16 KB to 256 KB, 80 KB on average.
+ */
+public class ContentChunker {
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+    static final long CUT_MASK = 0xffff000000000000L;
+
+    // Fixed seed: every master must cut the same content the same way
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6765617263646364L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_CHUNK];
+    private int buffered;
+
+    public ContentChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * The next chunk, or null at the end of the stream.
+     */
+    public byte[] next() throws IOException {
+        int n;
+        while (buffered < buffer.length && (n = in.read(buffer, buffered, buffer.length - buffered)) >= 0) {
+            buffered += n;
+        }
+        if (buffered == 0) {
+            return null;
+        }
+        int cut = cut(buffer, buffered);
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, buffered - cut);
+        buffered -= cut;
+        return chunk;
+    }
+
+    static int cut(byte[] data, int length) {
+        if (length <= MIN_CHUNK) {
+            return length;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & CUT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
@@ -2,19 +2,86 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class Master {
+public class Master implements SlaveMonitor.Listener {
     String ip;
     int port;
-    List<String> slaves;
-    Map<String, List<String>> filePartitionMap; // Persistent data
+    Catalog catalog; // Persistent data
+    int chunkSize;
+    int transferThreads;
+    int ackTimeout;
+    int gatherWindow;
+    int hedgeDelay;
+    ExecutorService transferPool;
+    ExecutorService gatherPool;
+    SlavePool slavePool;
+    int poolIdleTimeout;
+    int poolMaxIdle;
+    String serverMode;
+    int maxConnections;
+    int workerThreads;
+    long blockSize;
+    int snapshotInterval;
+    MetadataJournal journal;
+    int replicationFactor;
+    int failureTimeout;
+    int repairInterval;
+    long repairBytesPerSecond;
+    int repairThreads;
+    int repairPerSlave;
+    ExecutorService repairPool;
+    // Copies each slave takes part in at once, as source or target
+    final Map<Catalog.Replica, Semaphore> repairSlots = new ConcurrentHashMap<>();
+    // Partitions with a copy under way, which later passes leave alone
+    final Set<Catalog.PartitionRef> repairing = ConcurrentHashMap.newKeySet();
+    // When the copies started so far are all paid for at repairBytesPerSecond
+    final AtomicLong repairPacedUntil = new AtomicLong();
+    SlaveMonitor monitor;
+    ScheduledExecutorService repairScheduler;
+    // Rebalance moves run apart from repairs, so a long pass never holds back a repair or a reconcile
+    ScheduledExecutorService rebalanceScheduler;
+    PlacementStrategy placement;
+    PartitionCache cache;
+    int rebalanceInterval;
+    long rebalanceBytesPerSecond;
+    String codec;
+    boolean dedup;
+    long batchMaxFileSize;
+    // Last version handed to an upload, see nextVersion
+    final AtomicLong versions = new AtomicLong();
+
+    // Chunks a dedup upload offers the slaves at once, and chunk names per release command
+    static final int DEDUP_BATCH = 64;
+    static final int RELEASE_BATCH = 256;
+    // Bytes of names per slave command, below the 64 KB a writeUTF can carry
+    static final int COMMAND_BYTES = 60000;
+
+    static final byte[] END_OF_PARTITION = new byte[0];
+    // Frames a get reads ahead per partition, so its memory is bounded whatever the partition sizes
+    static final int PREFETCH_FRAMES = 16;
 
     public Master(String configFile) {
         loadConfig(configFile);
-        slaves = new ArrayList<>();
-        filePartitionMap = new HashMap<>();
+        catalog = new Catalog();
+        transferPool = Executors.newFixedThreadPool(transferThreads);
+        gatherPool = Executors.newFixedThreadPool(transferThreads);
+        slavePool = new SlavePool(ackTimeout, ackTimeout, poolIdleTimeout, poolMaxIdle);
         loadPersistence();
+        monitor = new SlaveMonitor(failureTimeout, this);
+        repairScheduler = Executors.newSingleThreadScheduledExecutor();
+        repairPool = Executors.newFixedThreadPool(repairThreads);
+        rebalanceScheduler = Executors.newSingleThreadScheduledExecutor();
+        // Give every live slave time to report in before judging replica counts
+        repairScheduler.scheduleWithFixedDelay(this::repairReplicas, Math.max(repairInterval, failureTimeout), repairInterval, TimeUnit.MILLISECONDS);
+        if (rebalanceInterval > 0) {
+            rebalanceScheduler.scheduleWithFixedDelay(this::rebalance, Math.max(rebalanceInterval, failureTimeout), rebalanceInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void loadConfig(String configFile) {
@@ -25,6 +92,32 @@ public class Master {
 
             ip = prop.getProperty("master_ip");
             port = Integer.parseInt(prop.getProperty("master_port"));
+            chunkSize = Integer.parseInt(prop.getProperty("chunk_size", String.valueOf(ChunkedOutputStream.DEFAULT_CHUNK_SIZE)));
+            transferThreads = Integer.parseInt(prop.getProperty("transfer_threads", "16"));
+            ackTimeout = Integer.parseInt(prop.getProperty("ack_timeout_ms", "30000"));
+            gatherWindow = Integer.parseInt(prop.getProperty("gather_window", "8"));
+            hedgeDelay = Integer.parseInt(prop.getProperty("hedge_delay_ms", "0"));
+            poolIdleTimeout = Integer.parseInt(prop.getProperty("pool_idle_timeout_ms", "60000"));
+            poolMaxIdle = Integer.parseInt(prop.getProperty("pool_max_idle", "8"));
+            serverMode = prop.getProperty("server_mode", "threads");
+            maxConnections = Integer.parseInt(prop.getProperty("max_connections", "1024"));
+            workerThreads = Integer.parseInt(prop.getProperty("worker_threads", "32"));
+            blockSize = Long.parseLong(prop.getProperty("block_size", "0"));
+            snapshotInterval = Integer.parseInt(prop.getProperty("snapshot_interval", "1000"));
+            replicationFactor = Integer.parseInt(prop.getProperty("replication_factor", "2"));
+            failureTimeout = Integer.parseInt(prop.getProperty("failure_timeout_ms", "10000"));
+            repairInterval = Integer.parseInt(prop.getProperty("repair_interval_ms", "30000"));
+            repairBytesPerSecond = Long.parseLong(prop.getProperty("repair_bytes_per_sec", "10485760"));
+            repairThreads = Integer.parseInt(prop.getProperty("repair_threads", "4"));
+            repairPerSlave = Integer.parseInt(prop.getProperty("repair_per_slave", "2"));
+            rebalanceInterval = Integer.parseInt(prop.getProperty("rebalance_interval_ms", "60000"));
+            rebalanceBytesPerSecond = Long.parseLong(prop.getProperty("rebalance_bytes_per_sec", "5242880"));
+            codec = prop.getProperty("codec", Codec.NONE);
+            dedup = Boolean.parseBoolean(prop.getProperty("dedup", "false"));
+            batchMaxFileSize = Long.parseLong(prop.getProperty("batch_max_file_size", "1048576"));
+            cache = new PartitionCache(Long.parseLong(prop.getProperty("cache_bytes", "0")));
+            placement = PlacementStrategy.create(prop.getProperty("placement", "round_robin"),
+                    Long.parseLong(prop.getProperty("min_partition_size", "1048576")));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -36,334 +129,1607 @@ public class Master {
             byte[] buffer = new byte[1024];
 
             System.out.println("Master listening for REGISTER messages on port " + port);
-            Scanner scanner = new Scanner();
             while (true) {
-                if(scanner.nextLine())
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
 
                 String message = new String(packet.getData(), 0, packet.getLength());
                 if (message.startsWith("REGISTER:")) {
-                    String slaveDetails = message.substring(9);
-                    slaves.add(slaveDetails);
-                    System.out.println("Registered slave: " + slaveDetails);
-                } 
+                    monitor.heartbeat(message.substring(9), 0, -1, -1);
+                } else if (message.startsWith("HEARTBEAT:")) {
+                    // HEARTBEAT:<load>:<freeBytes>:<totalBytes>:<ip:port:root:masterPort>
+                    String[] parts = message.substring(10).split(":", 4);
+                    monitor.heartbeat(parts[3], Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                } else if (message.startsWith("CORRUPT:")) {
+                    // CORRUPT:<ip>:<port>:<index>:<file>
+                    String[] parts = message.substring(8).split(":", 4);
+                    Catalog.Replica slave = new Catalog.Replica(parts[0], Integer.parseInt(parts[1]));
+                    repairScheduler.execute(() -> dropCorruptReplica(slave, parts[3], Integer.parseInt(parts[2])));
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    int getPartition() {
-        int max = 0;
-        for(String key : filePartitionMap.keySet()) {
-            for(String map : filePartitionMap.get(key)) {
-                String[] values = map.split(",");
-                int value = Integer.parseInt(values[0]);
-                if(max < value) {
-                    max = value;
+    @Override
+    public void slaveUp(SlaveMonitor.Status status) {
+        System.out.println("Registered slave: " + status.details);
+        // Connections pooled before a restart lead to the old process
+        slavePool.forget(status.slave.ip, status.slave.port);
+        // A slave announces itself before it listens, let it settle before asking it anything
+        repairScheduler.schedule(() -> reconcileInventory(status.slave), failureTimeout, TimeUnit.MILLISECONDS);
+        if (rebalanceInterval > 0) {
+            rebalanceScheduler.schedule(this::rebalance, failureTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Checks a slave that (re)joined against its inventory: the copies the catalog expects of it
+     * but it no longer holds are forgotten, so the repair pass restores them elsewhere. Files
+     * committed meanwhile are left alone, since the inventory may predate them. Copies the slave
+     * kept while it was away are deleted when the file has moved on without them: re-replicated
+     * elsewhere, or replaced by a newer version. Other copies the catalog does not place on the
+     * slave are only reported: they may be an upload not committed yet.
+     */
+    void reconcileInventory(Catalog.Replica slave) {
+        List<Catalog.FileEntry> expected = new ArrayList<>(catalog.files());
+        Set<Catalog.PartitionRef> held = new HashSet<>();
+        SlavePool.Connection connection = null;
+        try {
+            connection = slavePool.borrow(slave.ip, slave.port);
+            connection.send("inventory");
+            String line;
+            while (!(line = connection.readReply()).equals("END")) {
+                // <index> <size> <crc> <file>
+                String[] parts = line.split(" ", 4);
+                held.add(new Catalog.PartitionRef(parts[3], Integer.parseInt(parts[0])));
+            }
+            slavePool.release(connection);
+        } catch (IOException e) {
+            slavePool.discard(connection);
+            System.out.println("Unreachable slave: " + slave + ". Failed to load its inventory");
+            return;
+        }
+
+        int missing = 0;
+        Set<Catalog.PartitionRef> placed = new HashSet<>();
+        for (Catalog.FileEntry entry : expected) {
+            Catalog.FileEntry version = entry;
+            for (Catalog.Partition partition : entry.partitions) {
+                if (partition.chunk != null || !partition.replicas.contains(slave)) {
+                    continue;
+                }
+                Catalog.PartitionRef ref = new Catalog.PartitionRef(entry.storedName(), partition.index);
+                placed.add(ref);
+                if (version != null && !held.contains(ref)) {
+                    Catalog.FileEntry updated = dropReplica(slave, version, partition.index, "missing");
+                    if (updated != null) {
+                        version = updated;
+                        missing++;
+                    }
                 }
             }
         }
-        return max + 1;
+        held.removeAll(placed);
+        int stale = 0;
+        for (Catalog.PartitionRef ref : held) {
+            if (dropStaleCopy(slave, ref)) {
+                stale++;
+            }
+        }
+        System.out.println("Inventory of " + slave + ": " + missing + " missing partitions, " + stale + " stale copies deleted, "
+                + (held.size() - stale) + " not in the catalog");
+        if (missing > 0) {
+            repairReplicas();
+        }
+    }
+
+    /**
+     * Deletes the slave's copy of a partition, by its stored name, when the current version of
+     * the file is stored under that name but no longer on this slave, or is newer. Checked under
+     * the file lock, so a copy made to the slave meanwhile is never taken for a stale one.
+     */
+    boolean dropStaleCopy(Catalog.Replica slave, Catalog.PartitionRef ref) {
+        String fileName = Catalog.nameOf(ref.fileName);
+        ReentrantLock lock = catalog.lock(fileName);
+        lock.lock();
+        SlavePool.Connection connection = null;
+        try {
+            Catalog.FileEntry entry = catalog.get(fileName);
+            if (entry == null) {
+                return false;
+            }
+            boolean superseded = entry.storedName().equals(ref.fileName)
+                    ? entry.deduplicated() || !entry.hosts(ref.index, slave)
+                    : Catalog.versionOf(ref.fileName) < entry.version;
+            if (!superseded) {
+                return false;
+            }
+            connection = slavePool.borrow(slave.ip, slave.port);
+            connection.send("drop_partition " + ref.fileName + " " + ref.index);
+            connection.readReply();
+            slavePool.release(connection);
+            System.out.println("Deleted stale partition " + ref.index + " of " + ref.fileName + " on " + slave);
+            return true;
+        } catch (IOException e) {
+            slavePool.discard(connection);
+            System.out.println("Unreachable slave: " + slave + ". Failed to delete stale partition");
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void slaveDown(SlaveMonitor.Status status) {
+        System.out.println("Slave " + status.slave + " missed its heartbeats, marked down");
+        slavePool.forget(status.slave.ip, status.slave.port);
+        repairScheduler.execute(this::repairReplicas);
+    }
+
+    /**
+     * Brings every partition back to replicationFactor live copies. The copies run on repairPool,
+     * each slave taking part in at most repairPerSlave of them at once; the pass waits for a slot
+     * rather than pile copies onto one slave. Each copy then pauses until it is paid for at
+     * repairBytesPerSecond across all of them, so repairs never take more than that share of the
+     * network. A partition already being copied is skipped until its copy is done.
+     */
+    void repairReplicas() {
+        try {
+            for (Catalog.FileEntry entry : catalog.files()) {
+                for (Catalog.Partition partition : entry.partitions) {
+                    Catalog.PartitionRef ref = new Catalog.PartitionRef(entry.name, partition.index);
+                    if (repairing.contains(ref)) {
+                        continue;
+                    }
+                    List<Catalog.Replica> live = new ArrayList<>();
+                    for (Catalog.Replica replica : partition.replicas) {
+                        if (monitor.isAlive(replica)) {
+                            live.add(replica);
+                        }
+                    }
+                    if (live.size() >= replicationFactor) {
+                        continue;
+                    }
+                    if (live.isEmpty()) {
+                        System.out.println("Partition " + partition.index + " of " + entry.name + " has no live replica");
+                        continue;
+                    }
+                    Catalog.Replica target = repairTarget(partition.replicas);
+                    if (target == null) {
+                        continue;
+                    }
+                    Catalog.Replica source = null;
+                    for (Catalog.Replica replica : live) {
+                        if (repairSlots(replica).tryAcquire()) {
+                            source = replica;
+                            break;
+                        }
+                    }
+                    if (source == null) {
+                        source = live.get(0);
+                        repairSlots(source).acquire();
+                    }
+                    repairSlots(target).acquire();
+                    repairing.add(ref);
+                    Catalog.Replica from = source;
+                    repairPool.execute(() -> {
+                        try {
+                            if (copyPartition(entry.name, partition.index, from, target, null) && partition.size > 0) {
+                                pace(partition.size);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            repairSlots(from).release();
+                            repairSlots(target).release();
+                            repairing.remove(ref);
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    Semaphore repairSlots(Catalog.Replica slave) {
+        return repairSlots.computeIfAbsent(slave, k -> new Semaphore(repairPerSlave));
+    }
+
+    // Waits until a copy of the given size fits in repairBytesPerSecond, after the copies before it
+    void pace(long bytes) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long until = repairPacedUntil.updateAndGet(last -> Math.max(last, now) + bytes * 1000 / repairBytesPerSecond);
+        Thread.sleep(until - now);
+    }
+
+    /**
+     * A slave found its copy of a partition corrupt: forgets that copy, has the slave delete it and
+     * lets the repair pass copy a healthy replica elsewhere. The last copy is kept, since a partly
+     * readable partition beats none.
+     */
+    void dropCorruptReplica(Catalog.Replica slave, String storedName, int partitionIndex) {
+        Catalog.FileEntry entry = catalog.get(Catalog.nameOf(storedName));
+        if (entry != null && entry.storedName().equals(storedName)) {
+            dropReplica(slave, entry, partitionIndex, "corrupt");
+        }
+        repairReplicas();
     }
 
-    void handleGetRequest(String fileName, DataOutputStream clientOut) throws IOException {
-        if (!filePartitionMap.containsKey(fileName)) {
+    /**
+     * Forgets the slave's copy of a partition of the file, as long as the file is still at the
+     * version given, and has the slave delete it. Returns the new version, or null when nothing
+     * was dropped; the last copy is always kept.
+     */
+    Catalog.FileEntry dropReplica(Catalog.Replica slave, Catalog.FileEntry version, int partitionIndex, String reason) {
+        String fileName = version.name;
+        ReentrantLock lock = catalog.lock(fileName);
+        lock.lock();
+        SlavePool.Connection connection = null;
+        try {
+            Catalog.FileEntry entry = catalog.get(fileName);
+            if (entry != version) {
+                return null;
+            }
+            List<Catalog.Partition> partitions = new ArrayList<>(entry.partitions);
+            for (int i = 0; i < partitions.size(); i++) {
+                Catalog.Partition partition = partitions.get(i);
+                if (partition.index != partitionIndex || !partition.replicas.contains(slave)) {
+                    continue;
+                }
+                if (partition.replicas.size() == 1) {
+                    System.out.println("Only copy of partition " + partitionIndex + " of " + fileName + " is " + reason + ", on " + slave);
+                    return null;
+                }
+                List<Catalog.Replica> replicas = new ArrayList<>(partition.replicas);
+                replicas.remove(slave);
+                partitions.set(i, new Catalog.Partition(partitionIndex, partition.size, replicas, partition.chunk));
+                Catalog.FileEntry updated = entry.withPartitions(partitions);
+                catalog.put(updated);
+                journal.append(updated.toRecord());
+                System.out.println("Dropped " + reason + " partition " + partitionIndex + " of " + fileName + " on " + slave);
+
+                connection = slavePool.borrow(slave.ip, slave.port);
+                connection.send(partition.chunk != null ? "release_chunks " + partition.chunk : "drop_partition " + entry.storedName() + " " + partitionIndex);
+                connection.readReply();
+                slavePool.release(connection);
+                return updated;
+            }
+        } catch (IOException e) {
+            slavePool.discard(connection);
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    // The live slave that does not hold the partition yet with the most free disk, one with a free repair slot if any
+    Catalog.Replica repairTarget(List<Catalog.Replica> holders) {
+        SlaveMonitor.Status best = null;
+        boolean bestFree = false;
+        for (SlaveMonitor.Status status : monitor.alive()) {
+            if (holders.contains(status.slave)) {
+                continue;
+            }
+            boolean free = repairSlots(status.slave).availablePermits() > 0;
+            if (best == null || (free && !bestFree) || (free == bestFree && (status.freeBytes() > best.freeBytes()
+                    || (status.freeBytes() == best.freeBytes() && status.load() < best.load())))) {
+                best = status;
+                bestFree = free;
+            }
+        }
+        return best == null ? null : best.slave;
+    }
+
+    /**
+     * Moves partitions from the slave holding the most bytes to the one holding the least, until
+     * no move would narrow the gap between them. Paced at rebalanceBytesPerSecond like repairs.
+     * Repairs come first: the pass stops while any partition is being re-replicated, and the next
+     * one resumes from the new totals.
+     */
+    void rebalance() {
+        try {
+            Map<Catalog.Replica, Long> stored = new HashMap<>();
+            for (SlaveMonitor.Status status : monitor.alive()) {
+                stored.put(status.slave, 0L);
+            }
+            if (stored.size() < 2) {
+                return;
+            }
+            for (Catalog.FileEntry entry : catalog.files()) {
+                for (Catalog.Partition partition : entry.partitions) {
+                    for (Catalog.Replica replica : partition.replicas) {
+                        stored.computeIfPresent(replica, (k, bytes) -> bytes + Math.max(0, partition.size));
+                    }
+                }
+            }
+
+            while (repairing.isEmpty()) {
+                Catalog.Replica fullest = Collections.max(stored.entrySet(), Map.Entry.comparingByValue()).getKey();
+                Catalog.Replica emptiest = Collections.min(stored.entrySet(), Map.Entry.comparingByValue()).getKey();
+                long gap = stored.get(fullest) - stored.get(emptiest);
+
+                // The largest partition that still leaves the pair closer than before
+                Catalog.PartitionRef best = null;
+                long bestSize = 0;
+                for (Catalog.PartitionRef ref : catalog.partitionsOn(fullest)) {
+                    Catalog.Partition partition = catalog.partition(ref);
+                    if (partition != null && !partition.replicas.contains(emptiest)
+                            && partition.size > bestSize && partition.size * 2 <= gap) {
+                        best = ref;
+                        bestSize = partition.size;
+                    }
+                }
+                if (best == null || !copyPartition(best.fileName, best.index, fullest, emptiest, fullest)) {
+                    return;
+                }
+                stored.merge(fullest, -bestSize, Long::sum);
+                stored.merge(emptiest, bestSize, Long::sum);
+                Thread.sleep(bestSize * 1000 / rebalanceBytesPerSecond);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Has source push its copy of the partition to target, then records target in the catalog:
+     * in place of the dead replicas for a repair, or of {@code moved} for a move, whose copy is
+     * deleted only once no reader can be sent to it anymore. Runs under the file lock so a
+     * concurrent put or rm cannot interleave.
+     */
+    boolean copyPartition(String fileName, int partitionIndex, Catalog.Replica source, Catalog.Replica target, Catalog.Replica moved) {
+        String action = moved == null ? "Re-replication" : "Move";
+        ReentrantLock lock = catalog.lock(fileName);
+        lock.lock();
+        SlavePool.Connection connection = null;
+        try {
+            Catalog.FileEntry entry = catalog.get(fileName);
+            if (entry == null) {
+                return false;
+            }
+            List<Catalog.Partition> partitions = new ArrayList<>(entry.partitions);
+            int position = -1;
+            for (int i = 0; i < partitions.size(); i++) {
+                if (partitions.get(i).index == partitionIndex) {
+                    position = i;
+                }
+            }
+            if (position < 0 || !partitions.get(position).replicas.contains(source) || partitions.get(position).replicas.contains(target)) {
+                return false;
+            }
+
+            String chunk = partitions.get(position).chunk;
+            connection = slavePool.borrow(source.ip, source.port);
+            connection.send(chunk != null ? "replicate_chunk " + chunk + " " + target : "replicate " + entry.storedName() + " " + partitionIndex + " " + target);
+            String response = connection.readReply();
+            slavePool.release(connection);
+            connection = null;
+            if (!response.startsWith("ACK")) {
+                System.out.println(action + " of partition " + partitionIndex + " of " + fileName + " failed: " + response);
+                return false;
+            }
+
+            Catalog.Partition partition = partitions.get(position);
+            List<Catalog.Replica> replicas = new ArrayList<>();
+            for (Catalog.Replica replica : partition.replicas) {
+                if (moved == null ? monitor.isAlive(replica) : !replica.equals(moved)) {
+                    replicas.add(replica);
+                }
+            }
+            replicas.add(target);
+            partitions.set(position, new Catalog.Partition(partitionIndex, partition.size, replicas, chunk));
+            Catalog.FileEntry updated = entry.withPartitions(partitions);
+            catalog.put(updated);
+            journal.append(updated.toRecord());
+            System.out.println(action + " of partition " + partitionIndex + " of " + fileName + " from " + source + " to " + target + " done");
+
+            if (moved != null) {
+                connection = slavePool.borrow(moved.ip, moved.port);
+                connection.send(chunk != null ? "release_chunks " + chunk : "drop_partition " + entry.storedName() + " " + partitionIndex);
+                response = connection.readReply();
+                slavePool.release(connection);
+                connection = null;
+                if (!response.equals("ACK")) {
+                    System.out.println("Error deleting moved partition " + partitionIndex + " of " + fileName + " on " + moved);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            slavePool.discard(connection);
+            System.out.println(action + " of partition " + partitionIndex + " of " + fileName + " failed: " + e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the file, or only length bytes from offset when length >= 0. A range is mapped to the
+     * partitions covering it and each slave reads just its part of them.
+     */
+    void handleGetRequest(String fileName, long offset, long length, DataOutputStream clientOut) throws IOException {
+        Catalog.FileEntry entry = catalog.get(fileName);
+        if (entry == null) {
             clientOut.writeUTF("ERROR: File not found on master.");
             return;
         }
-     
-        List<String> partitions = filePartitionMap.get(fileName);
-        Map<Integer, String> reassembledFile = new TreeMap<>();
-    
-        for (String partitionInfo : partitions) {
-            String[] details = partitionInfo.split(",");
-            int partitionIndex = Integer.parseInt(details[0].trim());
-            String slaveIp = details[1].trim();
-            int slavePort = Integer.parseInt(details[2].trim());
-    
-            String partitionData = requestPartitionFromSlave(slaveIp, slavePort, fileName, partitionIndex);
-            if (partitionData != null) {
-                reassembledFile.put(partitionIndex, partitionData);
+        // Pieces to send in order: {partition index, offset in it, length or -1 for all of it}.
+        // Only one replica of each partition is needed
+        List<long[]> pieces = new ArrayList<>();
+        if (length < 0) {
+            for (Catalog.Partition partition : entry.partitions) {
+                pieces.add(new long[] {partition.index, 0, -1});
+            }
+        } else {
+            long partitionStart = 0;
+            for (Catalog.Partition partition : entry.partitions) {
+                if (partition.size < 0) {
+                    clientOut.writeUTF("ERROR: Partition sizes of " + fileName + " are unknown, put it again for range reads.");
+                    return;
+                }
+                long from = Math.max(partitionStart, offset);
+                long to = Math.min(partitionStart + partition.size, offset + length);
+                if (from < to) {
+                    pieces.add(new long[] {partition.index, from - partitionStart, to - from});
+                }
+                partitionStart += partition.size;
             }
         }
-        
-        // Reassemble the file content
-        StringBuilder fileContent = new StringBuilder();
-        int partition = getPartition();
-        for (int i = 0; i < partition; i++) {
-            if(reassembledFile.get(i) == null) {
-                clientOut.writeUTF("Failed to reassemble file: Unreachable slave");
+        int count = pieces.size();
+
+        // Read up to gatherWindow partitions ahead, each into a bounded queue of frames, and stream
+        // them back in order: at most gatherWindow * PREFETCH_FRAMES frames are held at once
+        List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+        List<Future<Boolean>> fetches = new ArrayList<>();
+        ChunkedOutputStream fileContent = null;
+        String error = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                while (fetches.size() < count && fetches.size() < i + gatherWindow) {
+                    long[] piece = pieces.get(fetches.size());
+                    BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(PREFETCH_FRAMES);
+                    queues.add(frames);
+                    fetches.add(gatherPool.submit(() -> readPartition(entry, (int) piece[0], piece[1], piece[2], frames)));
+                }
+
+                boolean complete = false;
+                try {
+                    byte[] frame;
+                    while ((frame = queues.get(i).take()) != END_OF_PARTITION) {
+                        if (fileContent == null) {
+                            clientOut.writeUTF("SUCCESS");
+                            fileContent = new ChunkedOutputStream(clientOut, chunkSize);
+                        }
+                        fileContent.write(frame);
+                    }
+                    complete = fetches.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Get interrupted: " + fileName);
+                }
+                queues.set(i, null);
+                fetches.set(i, null);
+                if (!complete) {
+                    error = "Failed to reassemble file: Unreachable slave";
+                    break;
+                }
+            }
+        } finally {
+            for (Future<Boolean> fetch : fetches) {
+                if (fetch != null) {
+                    fetch.cancel(true);
+                }
+            }
+        }
+
+        if (fileContent == null) {
+            if (error != null) {
+                clientOut.writeUTF(error);
                 return;
             }
-            fileContent.append(reassembledFile.get(i)).append("\n");
+            clientOut.writeUTF("SUCCESS");
+            fileContent = new ChunkedOutputStream(clientOut, chunkSize);
         }
-    
-        clientOut.writeUTF("SUCCESS");
-        clientOut.writeUTF(fileContent.toString());
-        clientOut.writeUTF("EOF");
+        fileContent.close();
+        clientOut.writeUTF(error == null ? "EOF" : "ERROR: " + error);
     }
+
+    /**
+     * Queues length bytes of a partition from offset (all of it when length is -1) as frames,
+     * then END_OF_PARTITION. A whole partition the cache can hold is read in one piece and cached;
+     * any other is streamed from a replica frame by frame. False when no replica could serve it.
+     */
+    boolean readPartition(Catalog.FileEntry entry, int partitionIndex, long offset, long length, BlockingQueue<byte[]> frames)
+            throws InterruptedException, IOException {
+        try {
+            Catalog.Partition partition = entry.partitions.get(partitionIndex);
+            byte[] data = cache.enabled() ? cache.get(entry.name, partitionIndex) : null;
+            if (data == null && length < 0 && cache.fits(partition.size)) {
+                data = fetchPartition(entry.storedName(), partition, 0, -1);
+                if (data == null) {
+                    return false;
+                }
+                if (entry.compressed()) {
+                    data = Codec.forName(entry.codec).decodeBlocks(data);
+                }
+                cache.put(entry.name, partitionIndex, data, () -> catalog.get(entry.name) == entry);
+            }
+            if (data == null) {
+                return streamPartition(entry, partition, offset, length, frames);
+            }
+            int from = (int) Math.min(offset, data.length);
+            int to = length < 0 ? data.length : (int) Math.min(offset + length, data.length);
+            for (int position = from; position < to; position += chunkSize) {
+                frames.put(Arrays.copyOfRange(data, position, Math.min(to, position + chunkSize)));
+            }
+            return true;
+        } finally {
+            frames.put(END_OF_PARTITION);
+        }
+    }
+
+    /**
+     * Streams a piece of a partition from its replicas with a fixed-size buffer. A replica that
+     * fails midway hands over to the next one, which resumes where it stopped. Compressed blocks
+     * only decode from the start of the partition, so a compressed one is read whole, decoded and
+     * trimmed to the piece here; the next replica sends it again and the bytes already queued are
+     * skipped.
+     */
+    boolean streamPartition(Catalog.FileEntry entry, Catalog.Partition partition, long offset, long length, BlockingQueue<byte[]> frames)
+            throws InterruptedException {
+        long end = length < 0 ? Long.MAX_VALUE : offset + length;
+        long sent = 0;
+        byte[] buffer = new byte[chunkSize];
+        for (Catalog.Replica replica : partition.replicas) {
+            SlavePool.Connection connection = null;
+            try {
+                connection = slavePool.borrow(replica.ip, replica.port);
+                // Offsets count raw bytes, the slave counts stored ones: a compressed partition is asked for whole
+                long start = entry.compressed() ? 0 : offset + sent;
+                long count = entry.compressed() || end == Long.MAX_VALUE ? -1 : end - start;
+                if (partition.chunk != null) {
+                    connection.send("get_chunk " + partition.chunk + " " + start + " " + count);
+                } else {
+                    connection.send("get_blocks " + entry.storedName() + " " + partition.index + " " + start + " " + count);
+                }
+                InputStream reply = ChecksummedInputStream.open(connection.readReply(), connection.in());
+                if (reply == null) {
+                    slavePool.release(connection);
+                    continue;
+                }
+                try (InputStream data = reply) {
+                    if (entry.compressed()) {
+                        Codec codec = Codec.forName(entry.codec);
+                        DataInputStream blocks = new DataInputStream(data);
+                        long position = 0;
+                        byte[] block;
+                        while (position < end && (block = codec.readBlock(blocks)) != null) {
+                            int from = (int) Math.max(0, Math.min(block.length, offset + sent - position));
+                            int to = (int) Math.max(0, Math.min(block.length, end - position));
+                            if (from < to) {
+                                frames.put(Arrays.copyOfRange(block, from, to));
+                                sent += to - from;
+                            }
+                            position += block.length;
+                        }
+                    } else {
+                        int n;
+                        while ((n = data.read(buffer)) > 0) {
+                            frames.put(Arrays.copyOf(buffer, n));
+                            sent += n;
+                        }
+                    }
+                }
+                slavePool.release(connection);
+                return true;
+            } catch (IOException e) {
+                slavePool.discard(connection);
+                System.out.println("Failed to load partition " + partition.index + " of " + entry.name + " from " + replica + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                slavePool.discard(connection);
+                throw e;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads one partition from the first replica that answers. A failed replica moves on to the
+     * next one right away; a slow one gets a hedged request to the next replica after hedgeDelay.
+     */
+    byte[] fetchPartition(String fileName, Catalog.Partition partition, long offset, long length) throws InterruptedException {
+        int partitionIndex = partition.index;
+        List<Catalog.Replica> replicas = partition.replicas;
+        CompletionService<byte[]> attempts = new ExecutorCompletionService<>(transferPool);
+        List<Future<byte[]>> started = new ArrayList<>();
+        int pending = 0;
+        try {
+            while (true) {
+                if (pending == 0) {
+                    if (started.size() == replicas.size()) {
+                        return null;
+                    }
+                    Catalog.Replica replica = replicas.get(started.size());
+                    started.add(attempts.submit(() -> requestPartitionFromSlave(replica.ip, replica.port, fileName, partition, offset, length)));
+                    pending++;
+                }
+
+                Future<byte[]> attempt = hedgeDelay > 0 && started.size() < replicas.size()
+                        ? attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS)
+                        : attempts.take();
+                if (attempt == null) {
+                    Catalog.Replica replica = replicas.get(started.size());
+                    System.out.println("Slow partition " + partitionIndex + " of " + fileName + ", hedging on " + replica);
+                    started.add(attempts.submit(() -> requestPartitionFromSlave(replica.ip, replica.port, fileName, partition, offset, length)));
+                    pending++;
+                    continue;
+                }
+
+                pending--;
+                try {
+                    byte[] partitionData = attempt.get();
+                    if (partitionData != null) {
+                        return partitionData;
+                    }
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            for (Future<byte[]> attempt : started) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    byte[] requestPartitionFromSlave(String slaveIp, int slavePort, String fileName, Catalog.Partition partition, long offset, long length) {
+        SlavePool.Connection connection = null;
+        try {
+            connection = slavePool.borrow(slaveIp, slavePort);
+            if (partition.chunk != null) {
+                connection.send("get_chunk " + partition.chunk + " " + offset + " " + length);
+            } else {
+                connection.send("get_blocks " + fileName + " " + partition.index + " " + offset + " " + length);
+            }
     
-    String requestPartitionFromSlave(String slaveIp, int slavePort, String fileName, int partitionIndex) {
-        try (Socket slaveSocket = new Socket(slaveIp, slavePort);
-             DataOutputStream out = new DataOutputStream(slaveSocket.getOutputStream());
-             DataInputStream in = new DataInputStream(slaveSocket.getInputStream())) {
-    
-            out.writeUTF("get_partition " + fileName + " " + partitionIndex);
-    
-            String response = in.readUTF();
-            if (response.startsWith("PARTITION_DATA")) {
-                return response.substring(14); 
+            InputStream reply = ChecksummedInputStream.open(connection.readReply(), connection.in());
+            byte[] partitionData = null;
+            if (reply != null) {
+                try (InputStream data = reply) {
+                    partitionData = data.readAllBytes();
+                }
             }
+            slavePool.release(connection);
+            return partitionData;
         } catch (IOException e) {
-            System.out.println("Unreachable slave: " + slaveIp + ":" + slavePort + ". Failed to load partition");
+            slavePool.discard(connection);
+            System.out.println("Failed to load partition " + partition.index + " from " + slaveIp + ":" + slavePort + ": " + e.getMessage());
         }
         return null;
     }
 
     public void handleClientRequests() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Master listening for client connections on port " + port);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket)).start();
-            }
+        try {
+            ServerEngine engine = ServerEngine.create(serverMode, port, maxConnections, workerThreads, this::handleClient);
+            System.out.println("Master listening for client connections on port " + port + " (" + serverMode + ")");
+            engine.serve();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    void handleClient(Socket clientSocket) {
-        try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
+    // A client keeps its connection for the whole session and may send commands before the previous replies
+    boolean handleClient(ServerEngine.Connection connection) throws IOException {
+        DataInputStream in = connection.in;
+        DataOutputStream out = connection.out;
+
+        String command = in.readUTF();
+        if (command.startsWith("put ")) {
+            // put <path> <size> [<blockSize>] [codec=<codec>] [dedup]
+            String[] parts = command.split(" ");
+            String filePath = parts[1];
+            long fileSize;
+            long fileBlockSize = blockSize;
+            String fileCodec = codec;
+            boolean fileDedup = dedup;
+            try {
+                fileSize = Long.parseLong(parts[2]);
+                for (int i = 3; i < parts.length; i++) {
+                    if (parts[i].startsWith("codec=")) {
+                        fileCodec = parts[i].substring(6);
+                    } else if (parts[i].equals("dedup")) {
+                        fileDedup = true;
+                    } else {
+                        fileBlockSize = Long.parseLong(parts[i]);
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // A path with a space shifts the fields; the upload is skipped so the session stays in step
+                new ChunkedInputStream(in).close();
+                out.writeUTF("ERROR: Invalid put command, file names cannot contain spaces.");
+                out.writeUTF("END_OF_RESPONSE");
+                return true;
+            }
+            System.out.println("Received upload request for file: " + filePath);
+            if (fileDedup) {
+                deduplicateAndDistributeFile(new File(filePath).getName(), in, out);
+            } else {
+                partitionAndDistributeFile(filePath, fileSize, fileBlockSize, fileCodec, in, out);
+            }
+        } else if (command.equals("ls")) {
+            sendFilePartitionList(out);
+        } else if (command.startsWith("locate ")) {
+            sendLocations(command.substring(7), out);
+        } else if (command.startsWith("plan ")) {
+            // plan <file> <size> [<blockSize>] [codec=<codec>]
+            String[] parts = command.split(" ");
+            long fileBlockSize = blockSize;
+            String fileCodec = codec;
+            try {
+                for (int i = 3; i < parts.length; i++) {
+                    if (parts[i].startsWith("codec=")) {
+                        fileCodec = parts[i].substring(6);
+                    } else {
+                        fileBlockSize = Long.parseLong(parts[i]);
+                    }
+                }
+                sendPlan(new File(parts[1]).getName(), Long.parseLong(parts[2]), fileBlockSize, fileCodec, out);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                out.writeUTF("ERROR: Invalid plan command, file names cannot contain spaces.");
+                out.writeUTF("END_OF_RESPONSE");
+            }
+        } else if (command.startsWith("commit ")) {
+            handleCommit(command, in, out);
+        } else if (command.equals("stats")) {
+            out.writeUTF(cache.stats());
+            for (SlaveMonitor.Status status : monitor.all()) {
+                out.writeUTF("Slave " + status);
+            }
+            out.writeUTF("END_OF_RESPONSE");
+        } else if (command.equals("connect")) {
+            System.out.println("Client registered.");
+        } else if (command.startsWith("get ")) {
+            // get <file> [<offset> <length>]; the range is taken from the end, after any destination an older client sends
+            String[] parts = command.split(" ");
+            String fileName = parts[1];
+            if (parts.length >= 4) {
+                handleGetRequest(fileName, Long.parseLong(parts[parts.length - 2]), Long.parseLong(parts[parts.length - 1]), out);
+            } else {
+                handleGetRequest(fileName, 0, -1, out);
+            }
+        } else if (command.startsWith("rm ")) {
+            // The rest of the line, so a name with a space is not found rather than taken for another file
+            handleRmRequest(command.substring(3), out);
+        } else if (command.startsWith("find ")) {
+            // find <glob>: the names of the matching files
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + command.substring(5));
+            for (Catalog.FileEntry entry : catalog.files()) {
+                if (matcher.matches(Paths.get(entry.name))) {
+                    out.writeUTF(entry.name);
+                }
+            }
+            out.writeUTF("END_OF_RESPONSE");
+        } else if (command.startsWith("mget ")) {
+            handleMultiGet(Arrays.asList(command.substring(5).split(" ")), out);
+        } else if (command.startsWith("mrm ")) {
+            handleMultiRm(Arrays.asList(command.substring(4).split(" ")), out);
+        }
+        return true;
+    }
+
+    /**
+     * mget: answers one get per name, in order, exactly as handleGetRequest would. Files of at most
+     * batchMaxFileSize bytes are read beforehand all together, with one get_partitions request
+     * per slave; the others, and any whose batched read failed, take the usual path.
+     */
+    void handleMultiGet(List<String> names, DataOutputStream out) throws IOException {
+        Map<Catalog.Replica, List<Catalog.Partition>> bySlave = new LinkedHashMap<>();
+        Map<Catalog.Partition, String> owners = new HashMap<>();
+        Map<String, Catalog.FileEntry> small = new HashMap<>();
+        for (String name : names) {
+            Catalog.FileEntry entry = catalog.get(name);
+            if (entry == null || entry.size() > batchMaxFileSize || small.containsKey(name)) {
+                continue;
+            }
+            Map<Catalog.Partition, Catalog.Replica> sources = new HashMap<>();
+            for (Catalog.Partition partition : entry.partitions) {
+                for (Catalog.Replica replica : partition.replicas) {
+                    if (partition.size >= 0 && monitor.isAlive(replica)) {
+                        sources.put(partition, replica);
+                        break;
+                    }
+                }
+            }
+            if (sources.size() < entry.partitions.size()) {
+                continue;
+            }
+            small.put(name, entry);
+            for (Catalog.Partition partition : entry.partitions) {
+                bySlave.computeIfAbsent(sources.get(partition), k -> new ArrayList<>()).add(partition);
+                owners.put(partition, entry.storedName());
+            }
+        }
 
-            String command = in.readUTF();
-            if (command.startsWith("put ")) {
-                String filePath = command.substring(7);
-                System.out.println("Received upload request for file: " + filePath);
-                partitionAndDistributeFile(filePath, in);
-            } else if (command.equals("ls")) {
-                sendFilePartitionList(out);
-            } else if (command.equals("connect")) {
-                System.out.println("Client registered.");
-            } else if (command.startsWith("get ")) {
-                String[] parts = command.split(" ", 3);
-                String fileName = parts[1];
-                handleGetRequest(fileName, out);
-            } else if (command.startsWith("rm ")) {
-                String[] parts = command.split(" ", 3);
-                String fileName = parts[1];
-                handleRmRequest(fileName, out);
+        // Each partition is found in its slave's batch by its position there
+        Map<Catalog.Partition, Future<List<byte[]>>> batches = new HashMap<>();
+        Map<Catalog.Partition, Integer> positions = new HashMap<>();
+        for (Map.Entry<Catalog.Replica, List<Catalog.Partition>> slave : bySlave.entrySet()) {
+            Future<List<byte[]>> batch = transferPool.submit(() -> requestPartitionsFromSlave(slave.getKey(), slave.getValue(), owners));
+            for (int i = 0; i < slave.getValue().size(); i++) {
+                batches.put(slave.getValue().get(i), batch);
+                positions.put(slave.getValue().get(i), i);
             }
+        }
 
+        for (String name : names) {
+            Catalog.FileEntry entry = small.remove(name);
+            List<byte[]> partitions = new ArrayList<>();
+            if (entry != null) {
+                for (Catalog.Partition partition : entry.partitions) {
+                    byte[] data = null;
+                    try {
+                        data = batches.get(partition).get().get(positions.get(partition));
+                        if (data != null && entry.compressed()) {
+                            data = Codec.forName(entry.codec).decodeBlocks(data);
+                        }
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Get interrupted: " + name);
+                    }
+                    if (data == null) {
+                        break;
+                    }
+                    partitions.add(data);
+                }
+            }
+            if (entry == null || partitions.size() < entry.partitions.size()) {
+                handleGetRequest(name, 0, -1, out);
+                continue;
+            }
+            out.writeUTF("SUCCESS");
+            try (ChunkedOutputStream content = new ChunkedOutputStream(out, chunkSize)) {
+                for (byte[] data : partitions) {
+                    content.write(data);
+                }
+            }
+            out.writeUTF("EOF");
+        }
+    }
+
+    // "get_partitions <file>:<index>|@<chunk>..." for many partitions at once; null for those the slave could not send
+    List<byte[]> requestPartitionsFromSlave(Catalog.Replica slave, List<Catalog.Partition> partitions, Map<Catalog.Partition, String> owners) {
+        List<byte[]> data = new ArrayList<>();
+        List<String> items = new ArrayList<>();
+        for (Catalog.Partition partition : partitions) {
+            items.add(partition.chunk != null ? "@" + partition.chunk : owners.get(partition) + ":" + partition.index);
+        }
+        SlavePool.Connection connection = null;
+        try {
+            connection = slavePool.borrow(slave.ip, slave.port);
+            // Split so that no command outgrows a writeUTF
+            int start = 0;
+            while (start < items.size()) {
+                int end = start;
+                int bytes = 0;
+                while (end < items.size() && (end == start || bytes + utfLength(items.get(end)) + 1 <= COMMAND_BYTES)) {
+                    bytes += utfLength(items.get(end++)) + 1;
+                }
+                connection.send("get_partitions " + String.join(" ", items.subList(start, end)));
+                for (int i = start; i < end; i++) {
+                    InputStream reply = ChecksummedInputStream.open(connection.readReply(), connection.in());
+                    if (reply != null) {
+                        try (InputStream partition = reply) {
+                            data.add(partition.readAllBytes());
+                        }
+                    } else {
+                        data.add(null);
+                    }
+                }
+                start = end;
+            }
+            slavePool.release(connection);
         } catch (IOException e) {
-            e.printStackTrace();
+            slavePool.discard(connection);
+            System.out.println("Unreachable slave: " + slave + ". Failed to load partitions");
+            while (data.size() < partitions.size()) {
+                data.add(null);
+            }
+        }
+        return data;
+    }
+
+    static int utfLength(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * mrm: one reply line per name, with one delete_partitions request per slave for all of the
+     * files. Their locks are held until the slaves are done, so no re-put can slip in between.
+     */
+    void handleMultiRm(List<String> names, DataOutputStream out) throws IOException {
+        List<String> replies = new ArrayList<>();
+        Map<Catalog.Replica, List<String>> bySlave = new LinkedHashMap<>();
+        List<ReentrantLock> locks = catalog.lockAll(names);
+        try {
+            for (String name : names) {
+                Catalog.FileEntry entry = catalog.get(name);
+                if (entry == null) {
+                    replies.add("ERROR: File not found.");
+                    continue;
+                }
+                if (entry.deduplicated()) {
+                    releaseChunks(entry.partitions);
+                } else {
+                    for (Catalog.Replica slave : catalog.slavesOf(name)) {
+                        bySlave.computeIfAbsent(slave, k -> new ArrayList<>()).add(entry.storedName());
+                    }
+                }
+                catalog.remove(name);
+                cache.invalidate(name);
+                journal.append("RM " + name);
+                replies.add("SUCCESS: File " + name + " removed.");
+            }
+            for (Map.Entry<Catalog.Replica, List<String>> slave : bySlave.entrySet()) {
+                sendDeleteCommandToSlave(slave.getKey().ip, slave.getKey().port, slave.getValue());
+            }
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+        for (String reply : replies) {
+            out.writeUTF(reply);
         }
     }
 
     void sendFilePartitionList(DataOutputStream out) throws IOException {
-        if (filePartitionMap.isEmpty()) {
+        if (catalog.isEmpty()) {
             out.writeUTF("No files uploaded.");
             out.writeUTF("END_OF_RESPONSE");
             return;
         }
-    
-        for (Map.Entry<String, List<String>> entry : filePartitionMap.entrySet()) {
-            String fileName = entry.getKey();
-            List<String> partitions = entry.getValue();
-    
-            StringBuilder partitionInfo = new StringBuilder();
-            partitionInfo.append("- " + fileName).append(": ").append(getPartition()).append(" partitions\n");
-            
-            for (String partition : partitions) {
-                String[] parts = partition.split(",");
-                partitionInfo.append("Partition ").append(parts[0] + "-> " + parts[1] + ":" + parts[2]).append("\n");
+
+        // One line per frame: a file with many partitions would not fit in one
+        for (Catalog.FileEntry entry : catalog.files()) {
+            out.writeUTF("- " + entry.name + ": " + entry.partitions.size() + " partitions, " + entry.size() + " bytes"
+                    + (entry.compressed() ? ", " + entry.codec : "") + (entry.deduplicated() ? ", deduplicated" : ""));
+            for (Catalog.Partition partition : entry.partitions) {
+                for (Catalog.Replica replica : partition.replicas) {
+                    out.writeUTF("Partition " + partition.index + "-> " + replica);
+                }
             }
-    
-            out.writeUTF(partitionInfo.toString());
         }
         out.writeUTF("END_OF_RESPONSE");
     }
 
-    void sendPartitionToSlave(String slaveIp, int slavePort, String line, String filePath, int index) {
-        try (Socket slaveSocket = new Socket(slaveIp, slavePort);
-                DataOutputStream out = new DataOutputStream(slaveSocket.getOutputStream());
-                DataInputStream in = new DataInputStream(slaveSocket.getInputStream())) {
-            if (slaves.isEmpty()) {
-                System.out.println("No active slaves to distribute the file.");
-                return;
+    // The replicas after the primary, as "ip:port,...", or "," for none
+    static String replicationChain(List<Catalog.Replica> chain) {
+        StringJoiner replicas = new StringJoiner(",");
+        for (Catalog.Replica replica : chain.subList(1, chain.size())) {
+            replicas.add(replica.toString());
+        }
+        return replicas.length() == 0 ? "," : replicas.toString();
+    }
+
+    /**
+     * Streams one partition, fed through {@code chunks} by the upload reader, to the head of its
+     * replication chain and waits for one ACK per replica. Returns the acknowledged locations;
+     * nothing is recorded in the catalog here.
+     */
+    List<Catalog.Replica> sendPartitionToSlave(String slaveIp, int slavePort, BlockingQueue<byte[]> chunks, String replicationChain,
+            String filePath, int index) throws IOException, InterruptedException {
+        boolean sent = false;
+        SlavePool.Connection connection = null;
+        try {
+            connection = slavePool.borrow(slaveIp, slavePort);
+            connection.send("partition " + filePath + " " + index + " " + replicationChain);
+            try (ChunkedOutputStream partition = new ChunkedOutputStream(connection.out(), chunkSize)) {
+                byte[] chunk;
+                while ((chunk = chunks.take()) != END_OF_PARTITION) {
+                    partition.write(chunk);
+                }
+                sent = true;
             }
 
-            String replicationList = "";
-
-            for(int i = 0; i < slaves.size(); i++) {
-                String[] slaveDetails = slaves.get(i).split(":");
-                String slaveip = slaveDetails[0];
-                int slaveport = Integer.parseInt(slaveDetails[1]);
-                if(!slaveip.equals(slaveIp) || slaveport != slavePort) {
-                    replicationList += slaveip + ":" + slaveport; 
-                    if(i < slaves.size() && slaves.size() > 2)
-                        replicationList += ",";
-                }
-            }
-            if(replicationList.isEmpty()) replicationList = ",";
-            
-            out.writeUTF("partition " + filePath + " " + index + " " + replicationList + " "+ line);
-            String slaveResponse = in.readUTF();
-            if(!filePartitionMap.containsKey(filePath)) {
-                filePartitionMap.put(filePath, new ArrayList<>());
-            }
-            filePartitionMap.get(filePath).add(index + "," +slaveIp + "," + slavePort);
-            savePersistence();
-            System.out.println(slaveResponse);
-           
-            if(!replicationList.equals(",")) {
-                slaveResponse = in.readUTF();
-                if (slaveResponse.startsWith("REPLICATED_ACK"))  {
-                    String[] response = slaveResponse.split(":");
-                    slaveIp = response[1];
-                    slavePort = Integer.parseInt(response[2]);
-                    index = Integer.parseInt(response[4]);
-
-                    if(!filePartitionMap.containsKey(filePath)) {
-                        filePartitionMap.put(filePath, new ArrayList<>());
-                    }
-                    filePartitionMap.get(filePath).add(index + "," +slaveIp + "," + slavePort);
-                    savePersistence();
-                    System.out.println(slaveResponse);
+            // "ACK:ip:port:file:index" from each node of the chain, head first
+            List<Catalog.Replica> locations = new ArrayList<>();
+            int replies = replicationChain.equals(",") ? 1 : replicationChain.split(",").length + 1;
+            for (int i = 0; i < replies; i++) {
+                String slaveResponse = connection.readReply();
+                if (!slaveResponse.startsWith("ACK:")) {
+                    throw new IOException(slaveResponse);
                 }
+                String[] response = slaveResponse.split(":");
+                locations.add(new Catalog.Replica(response[1], Integer.parseInt(response[2])));
+                System.out.println(slaveResponse);
             }
+            slavePool.release(connection);
+            connection = null;
+            return locations;
+        } finally {
+            slavePool.discard(connection);
+            // Keep the upload reader from blocking on a partition nobody consumes anymore
+            if (!sent) {
+                while (chunks.take() != END_OF_PARTITION) {
+                }
+            }
+        }
+    }
 
+    void loadPersistence() {
+        journal = new MetadataJournal("../register", "master_data", snapshotInterval, this::snapshotRecords);
+        try {
+            journal.open(this::applyRecord);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    void loadPersistence() {
-        try (BufferedReader reader = new BufferedReader(new FileReader("../register/master_data.dat"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("=");
-                String fileName = parts[0].trim();
-                String partitionData = parts[1].trim();
+    // Metadata records: "PUT <file> <partitions>..." (see Catalog.FileEntry) and "RM <file>"
+    void applyRecord(String record) {
+        if (record.startsWith("PUT ")) {
+            catalog.put(Catalog.FileEntry.parse(record.split(" ")));
+        } else if (record.startsWith("RM ")) {
+            catalog.remove(record.substring(3));
+        } else if (record.contains("={")) {
+            // Snapshot written before the journal existed: file={[index,ip,port], ...}
+            int separator = record.indexOf("={");
+            List<String> fields = new ArrayList<>(Arrays.asList("PUT", record.substring(0, separator).trim()));
+            for (String entry : record.substring(separator + 2, record.lastIndexOf('}')).split(", ")) {
+                if (entry.startsWith("[") && entry.endsWith("]")) {
+                    fields.add(entry.substring(1, entry.length() - 1));
+                }
+            }
+            catalog.put(Catalog.FileEntry.parse(fields.toArray(new String[0])));
+        }
+    }
+
+    List<String> snapshotRecords() {
+        List<String> records = new ArrayList<>();
+        for (Catalog.FileEntry entry : catalog.files()) {
+            records.add(entry.toRecord());
+        }
+        return records;
+    }
+
+    /**
+     * The placement strategy picks the partition count (fixed-size blocks when blockSize > 0) and
+     * the replication chain of every partition among the live slaves. With a codec other than
+     * "none" every chunk is compressed on its way to the slaves.
+     */
+    public void partitionAndDistributeFile(String filePath, long fileSize, long blockSize, String fileCodec, DataInputStream in,
+            DataOutputStream clientOut) throws IOException {
+        String fileName = new File(filePath).getName(); // Extract filename
+        // The partitions go under a name of this version's own, so the one being replaced stays intact until the commit
+        long version = nextVersion();
+        String storedName = Catalog.storedName(fileName, version);
+        List<SlaveMonitor.Status> targets = monitor.alive();
+        List<Future<List<Catalog.Replica>>> uploads = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        Set<Catalog.Replica> written = new LinkedHashSet<>();
+        boolean complete = false;
+
+        try (ChunkedInputStream upload = new ChunkedInputStream(in)) {
+            if (targets.isEmpty()) {
+                System.out.println("No active slaves to distribute the file.");
+                clientOut.writeUTF("ERROR: No active slaves to distribute the file.");
+                clientOut.writeUTF("END_OF_RESPONSE");
+                return;
+            }
+            if (!Catalog.validName(fileName)) {
+                clientOut.writeUTF("ERROR: Invalid file name: " + fileName);
+                clientOut.writeUTF("END_OF_RESPONSE");
+                return;
+            }
+            if (!Codec.isKnown(fileCodec)) {
+                clientOut.writeUTF("ERROR: Unknown codec: " + fileCodec);
+                clientOut.writeUTF("END_OF_RESPONSE");
+                return;
+            }
+            Codec compression = fileCodec.equals(Codec.NONE) ? null : Codec.forName(fileCodec);
+
+            // Forward the upload as it arrives, moving to the next slave at each partition boundary.
+            // Each partition is sent by its own task, so slaves receive and acknowledge concurrently.
+            int partitionCount = placement.partitionCount(fileSize, blockSize, targets.size());
+            long partitionSize = partitionSize(fileSize, blockSize, partitionCount);
+            List<List<Catalog.Replica>> chains = placement.place(fileName, partitionCount, partitionSize, replicationFactor, targets);
+            byte[] buffer = new byte[chunkSize];
+
+            for (int i = 0; i < partitionCount; i++) {
+                Catalog.Replica primary = chains.get(i).get(0);
+                String slaveIp = primary.ip;
+                int slavePort = primary.port;
+                String replicationChain = replicationChain(chains.get(i));
+                int index = i;
+                written.addAll(chains.get(i));
+
+                BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(16);
+                uploads.add(transferPool.submit(() -> sendPartitionToSlave(slaveIp, slavePort, chunks, replicationChain, storedName, index)));
+
+                PartitionStream partition = new PartitionStream(upload, i == partitionCount - 1 ? Long.MAX_VALUE : partitionSize);
+                long size = 0;
+                try {
+                    int n;
+                    while ((n = partition.read(buffer, 0, buffer.length)) > 0) {
+                        chunks.put(compression == null ? Arrays.copyOf(buffer, n) : compression.encodeBlock(buffer, 0, n));
+                        size += n;
+                    }
+                } finally {
+                    sizes.add(size);
+                    chunks.put(END_OF_PARTITION);
+                }
+            }
+            complete = true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Upload interrupted: " + fileName);
+        } finally {
+            if (!complete) {
+                uploads.forEach(upload -> upload.cancel(true));
+            }
+        }
 
-                List<String> partitions = new ArrayList<>();
-                partitionData = partitionData.substring(1, partitionData.length() - 1);
-                String[] partitionEntries = partitionData.split("], \\[");
-                for (String entry : partitionEntries) {
-                    partitions.add(entry.replaceAll("\\[", "").replaceAll("]", ""));
+        // Only commit the file once every partition and replica is acknowledged
+        List<Catalog.Partition> partitions = new ArrayList<>();
+        boolean success = true;
+        for (int i = 0; i < uploads.size(); i++) {
+            try {
+                List<Catalog.Replica> acked = uploads.get(i).get(ackTimeout, TimeUnit.MILLISECONDS);
+                partitions.add(new Catalog.Partition(i, sizes.get(i), acked));
+                StringJoiner storedOn = new StringJoiner(", ");
+                for (Catalog.Replica location : acked) {
+                    storedOn.add(location.toString());
                 }
+                clientOut.writeUTF("Partition " + i + ": stored on " + storedOn);
+            } catch (ExecutionException | TimeoutException | InterruptedException e) {
+                uploads.get(i).cancel(true);
+                success = false;
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                clientOut.writeUTF("Partition " + i + ": FAILED (" + cause + ")");
+            }
+        }
+
+        if (success) {
+            commitFile(new Catalog.FileEntry(fileName, fileCodec, version, partitions));
+            clientOut.writeUTF("SUCCESS: File " + fileName + " stored in " + uploads.size() + " partitions.");
+        } else {
+            // What did arrive belongs to no version anyone can read
+            for (Catalog.Replica slave : written) {
+                sendDeleteCommandToSlave(slave.ip, slave.port, List.of(storedName));
+            }
+            clientOut.writeUTF("ERROR: File " + fileName + " was not stored.");
+        }
+        clientOut.writeUTF("END_OF_RESPONSE");
+    }
+
+    /**
+     * Dedup mode: cuts the upload into content-defined chunks named by their SHA-256, each placed
+     * on the consistent hash ring by that name, so a chunk lands on the same slaves whatever file
+     * it comes from. Every slave is asked once per batch which of its chunks it lacks and only
+     * those are sent; the others just gain a reference. Each chunk is a partition of the file.
+     */
+    void deduplicateAndDistributeFile(String fileName, DataInputStream in, DataOutputStream clientOut) throws IOException {
+        List<SlaveMonitor.Status> targets = monitor.alive();
+        List<Catalog.Partition> partitions = new ArrayList<>();
+        long sent = 0;
+        String failure = null;
 
-                filePartitionMap.put(fileName, partitions);
+        try (ChunkedInputStream upload = new ChunkedInputStream(in)) {
+            if (targets.isEmpty()) {
+                System.out.println("No active slaves to distribute the file.");
+                clientOut.writeUTF("ERROR: No active slaves to distribute the file.");
+                clientOut.writeUTF("END_OF_RESPONSE");
+                return;
+            }
+            if (!Catalog.validName(fileName)) {
+                clientOut.writeUTF("ERROR: Invalid file name: " + fileName);
+                clientOut.writeUTF("END_OF_RESPONSE");
+                return;
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("No persistence file found. Starting fresh.");
+            TreeMap<Long, Catalog.Replica> ring = PlacementStrategy.ConsistentHash.ring(targets);
+            int wanted = Math.min(replicationFactor, targets.size());
+            ContentChunker chunker = new ContentChunker(upload);
+            List<byte[]> batch = new ArrayList<>();
+            byte[] chunk;
+            do {
+                chunk = chunker.next();
+                if (chunk != null) {
+                    batch.add(chunk);
+                }
+                if (batch.size() == DEDUP_BATCH || (chunk == null && !batch.isEmpty())) {
+                    sent += storeChunks(batch, ring, wanted, partitions);
+                    batch.clear();
+                }
+            } while (chunk != null);
         } catch (IOException e) {
-            e.printStackTrace();
+            failure = e.toString();
+        }
+
+        if (failure == null) {
+            Catalog.FileEntry entry = new Catalog.FileEntry(fileName, partitions);
+            commitFile(entry);
+            clientOut.writeUTF("SUCCESS: File " + fileName + " stored in " + partitions.size() + " chunks, " + sent
+                    + " bytes sent to the slaves.");
+        } else {
+            releaseChunks(partitions);
+            clientOut.writeUTF("ERROR: File " + fileName + " was not stored (" + failure + ")");
         }
+        clientOut.writeUTF("END_OF_RESPONSE");
     }
 
-    void savePersistence() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("../register/master_data.dat"))) {
-            for (String key : filePartitionMap.keySet()) {
-                List<String> entry = filePartitionMap.get(key);
-                writer.write(key + "={");
-                int length = entry.size();
-                for(int i = 0; i < length; i++) {
-                    writer.write("[" + entry.get(i) + "]");
-                    if(i < length - 1) {
-                        writer.write(", ");
-                    }
+    /**
+     * Stores one batch of chunks, each slave in parallel, and appends them to partitions. Returns
+     * the bytes that had to be sent. When a slave fails, the others give their references back.
+     */
+    long storeChunks(List<byte[]> batch, TreeMap<Long, Catalog.Replica> ring, int wanted, List<Catalog.Partition> partitions) throws IOException {
+        Map<String, byte[]> data = new HashMap<>();
+        Map<Catalog.Replica, List<String>> bySlave = new LinkedHashMap<>();
+        List<Catalog.Partition> stored = new ArrayList<>();
+        for (byte[] chunk : batch) {
+            String hash = ChunkStore.hash(chunk);
+            data.put(hash, chunk);
+            List<Catalog.Replica> chain = PlacementStrategy.ConsistentHash.chain(ring, hash, wanted);
+            for (Catalog.Replica replica : chain) {
+                bySlave.computeIfAbsent(replica, k -> new ArrayList<>()).add(hash);
+            }
+            stored.add(new Catalog.Partition(partitions.size() + stored.size(), chunk.length, chain, hash));
+        }
+
+        Map<Catalog.Replica, Future<Long>> transfers = new LinkedHashMap<>();
+        for (Map.Entry<Catalog.Replica, List<String>> slave : bySlave.entrySet()) {
+            transfers.put(slave.getKey(), transferPool.submit(() -> storeChunksOnSlave(slave.getKey(), slave.getValue(), data)));
+        }
+        long sent = 0;
+        IOException failure = null;
+        List<Catalog.Replica> referenced = new ArrayList<>();
+        for (Map.Entry<Catalog.Replica, Future<Long>> transfer : transfers.entrySet()) {
+            try {
+                sent += transfer.getValue().get(ackTimeout, TimeUnit.MILLISECONDS);
+                referenced.add(transfer.getKey());
+            } catch (ExecutionException | TimeoutException | InterruptedException e) {
+                transfer.getValue().cancel(true);
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                failure = new IOException(transfer.getKey() + ": " + cause);
+            }
+        }
+        if (failure != null) {
+            for (Catalog.Replica slave : referenced) {
+                releaseChunks(slave, bySlave.get(slave));
+            }
+            throw failure;
+        }
+        partitions.addAll(stored);
+        return sent;
+    }
+
+    // "ref_chunks" references what the slave has and answers "MISSING <hash>,..." for the rest, sent one by one
+    long storeChunksOnSlave(Catalog.Replica slave, List<String> hashes, Map<String, byte[]> data) throws IOException {
+        SlavePool.Connection connection = null;
+        try {
+            connection = slavePool.borrow(slave.ip, slave.port);
+            connection.send("ref_chunks " + String.join(",", hashes));
+            String reply = connection.readReply();
+            if (!reply.startsWith("MISSING ")) {
+                throw new IOException(reply);
+            }
+            long sent = 0;
+            for (String hash : reply.substring(8).split(",")) {
+                if (hash.isEmpty()) {
+                    continue;
+                }
+                connection.send("store_chunk " + hash);
+                try (ChunkedOutputStream chunk = new ChunkedOutputStream(connection.out(), chunkSize)) {
+                    chunk.write(data.get(hash));
                 }
-                writer.write("}");
-                writer.newLine();
+                String ack = connection.readReply();
+                if (!ack.equals("ACK")) {
+                    throw new IOException(ack);
+                }
+                sent += data.get(hash).length;
+            }
+            slavePool.release(connection);
+            connection = null;
+            return sent;
+        } finally {
+            slavePool.discard(connection);
+        }
+    }
+
+    // Gives back one reference per replica of every chunk
+    void releaseChunks(List<Catalog.Partition> partitions) {
+        Map<Catalog.Replica, List<String>> bySlave = new LinkedHashMap<>();
+        for (Catalog.Partition partition : partitions) {
+            for (Catalog.Replica replica : partition.replicas) {
+                bySlave.computeIfAbsent(replica, k -> new ArrayList<>()).add(partition.chunk);
+            }
+        }
+        for (Map.Entry<Catalog.Replica, List<String>> slave : bySlave.entrySet()) {
+            releaseChunks(slave.getKey(), slave.getValue());
+        }
+    }
+
+    void releaseChunks(Catalog.Replica slave, List<String> hashes) {
+        SlavePool.Connection connection = null;
+        try {
+            connection = slavePool.borrow(slave.ip, slave.port);
+            for (int i = 0; i < hashes.size(); i += RELEASE_BATCH) {
+                connection.send("release_chunks " + String.join(",", hashes.subList(i, Math.min(hashes.size(), i + RELEASE_BATCH))));
+                connection.readReply();
             }
+            slavePool.release(connection);
+            System.out.println("Slave at " + slave + " released " + hashes.size() + " chunk references");
         } catch (IOException e) {
-            e.printStackTrace();
+            slavePool.discard(connection);
+            System.out.println("Unreachable slave: " + slave + ". Failed to release chunks");
         }
     }
 
-    public void partitionAndDistributeFile(String filePath, DataInputStream in) throws IOException {
-        String fileName = new File(filePath).getName(); // Extract filename
-        List<String> lines = new ArrayList<>();
-        String line;
+    /**
+     * Exposes the next partition of an upload, so a failed slave does not shift later partitions.
+     */
+    static class PartitionStream extends FilterInputStream {
+        long remaining;
 
-        while (!(line = in.readUTF()).equals("EOF")) {
-            lines.add(line);
+        PartitionStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
         }
 
-        if (slaves.isEmpty()) {
-            System.out.println("No active slaves to distribute the file.");
-            return;
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
         }
 
-        int totalLines = lines.size();
-        int totalSlaves = slaves.size();
-        int linesPerPartition = totalLines / totalSlaves;
-        int remainingLines = totalLines % totalSlaves;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
 
-        List<String> partitions = new ArrayList<>();
-        int currentLineIndex = 0;
+        @Override
+        public void close() {
+        }
+    }
 
-        for (int i = 0; i < totalSlaves; i++) {
-            int partitionSize = linesPerPartition + (i < remainingLines ? 1 : 0);
-            List<String> partitionLines = lines.subList(currentLineIndex, currentLineIndex + partitionSize);
-            currentLineIndex += partitionSize;
+    /**
+     * Records a stored file, replacing any previous version, then clears that version off the
+     * slaves: its chunks are released, its partition files deleted from every slave that held
+     * them. A version stored under the same name as the new one (files put before versions) only
+     * loses the copies on slaves the new version does not use.
+     */
+    void commitFile(Catalog.FileEntry entry) throws IOException {
+        ReentrantLock lock = catalog.lock(entry.name);
+        lock.lock();
+        Catalog.FileEntry previous;
+        Set<Catalog.Replica> previousSlaves;
+        Set<Catalog.Replica> slaves;
+        try {
+            previous = catalog.get(entry.name);
+            previousSlaves = catalog.slavesOf(entry.name);
+            catalog.put(entry);
+            slaves = catalog.slavesOf(entry.name);
+            cache.invalidate(entry.name);
+            journal.append(entry.toRecord());
+        } finally {
+            lock.unlock();
+        }
+        if (previous == null) {
+            return;
+        }
+        if (previous.deduplicated()) {
+            releaseChunks(previous.partitions);
+            return;
+        }
+        boolean sameName = !entry.deduplicated() && previous.storedName().equals(entry.storedName());
+        for (Catalog.Replica slave : previousSlaves) {
+            if (!sameName || !slaves.contains(slave)) {
+                sendDeleteCommandToSlave(slave.ip, slave.port, List.of(previous.storedName()));
+            }
+        }
+    }
 
-            String slave = slaves.get(i);
-            String[] slaveDetails = slave.split(":");
-            String slaveIp = slaveDetails[0];
-            int slavePort = Integer.parseInt(slaveDetails[1]);
+    // Unique to each upload, and growing across restarts since it starts from the clock
+    long nextVersion() {
+        return versions.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
 
-            sendPartitionToSlave(slaveIp, slavePort, String.join("\n", partitionLines), fileName, i);
+    static long partitionSize(long fileSize, long blockSize, int partitionCount) {
+        return blockSize > 0 ? blockSize : Math.max(1, (fileSize + partitionCount - 1) / partitionCount);
+    }
 
-            partitions.add("[" + i + "," + slaveIp + "," + slavePort + "]");
+    /**
+     * Direct mode, read side: "LOCATION <index> <size> <ip:port>,<ip:port>... [<chunk>]" per partition,
+     * so the client reads the partitions, or deduplicated chunks, from the slaves itself. They come
+     * after "VERSION <version>" when the partitions are stored under a versioned name, and after
+     * "CODEC <codec>" for a compressed file: the client gets the stored blocks and decodes them.
+     */
+    void sendLocations(String fileName, DataOutputStream out) throws IOException {
+        Catalog.FileEntry entry = catalog.get(fileName);
+        if (entry == null) {
+            out.writeUTF("ERROR: File not found on master.");
+        } else {
+            if (entry.version != 0) {
+                out.writeUTF("VERSION " + entry.version);
+            }
+            if (entry.compressed()) {
+                out.writeUTF("CODEC " + entry.codec);
+            }
+            for (Catalog.Partition partition : entry.partitions) {
+                StringJoiner replicas = new StringJoiner(",");
+                for (Catalog.Replica replica : partition.replicas) {
+                    replicas.add(replica.toString());
+                }
+                out.writeUTF("LOCATION " + partition.index + " " + partition.size + " " + replicas + (partition.chunk != null ? " " + partition.chunk : ""));
+            }
         }
+        out.writeUTF("END_OF_RESPONSE");
     }
 
-    private void handleRmRequest(String fileName, DataOutputStream clientOut) throws IOException {
-        if (!filePartitionMap.containsKey(fileName)) {
-            clientOut.writeUTF("ERROR: File not found.");
+    /**
+     * Direct mode, write side: "PLAN <index> <offset> <length> <ip:port>,<ip:port>..." per partition,
+     * the replication chain head first. The client streams each range to its chain, then commits.
+     * "VERSION <version>" comes first, the version the partitions are stored under (see
+     * Catalog.storedName), then "CODEC <codec>" when the client is to compress the chunks it sends.
+     */
+    void sendPlan(String fileName, long fileSize, long blockSize, String fileCodec, DataOutputStream out) throws IOException {
+        List<SlaveMonitor.Status> targets = monitor.alive();
+        if (targets.isEmpty()) {
+            out.writeUTF("ERROR: No active slaves to distribute the file.");
+            out.writeUTF("END_OF_RESPONSE");
             return;
         }
-    
-        List<String> partitions = filePartitionMap.get(fileName);
-    
-        for (String partitionInfo : partitions) {
-            String[] details = partitionInfo.split(",");
-            String slaveIp = details[1].trim();
-            int slavePort = Integer.parseInt(details[2].replaceAll("\\[|\\]", "").trim());
-    
-            sendDeleteCommandToSlave(slaveIp, slavePort, fileName);
+        if (!Catalog.validName(fileName)) {
+            out.writeUTF("ERROR: Invalid file name: " + fileName);
+            out.writeUTF("END_OF_RESPONSE");
+            return;
+        }
+        if (!Codec.isKnown(fileCodec)) {
+            out.writeUTF("ERROR: Unknown codec: " + fileCodec);
+            out.writeUTF("END_OF_RESPONSE");
+            return;
+        }
+        out.writeUTF("VERSION " + nextVersion());
+        if (!fileCodec.equals(Codec.NONE)) {
+            out.writeUTF("CODEC " + fileCodec);
+        }
+        int partitionCount = placement.partitionCount(fileSize, blockSize, targets.size());
+        long partitionSize = partitionSize(fileSize, blockSize, partitionCount);
+        List<List<Catalog.Replica>> chains = placement.place(fileName, partitionCount, partitionSize, replicationFactor, targets);
+        for (int i = 0; i < partitionCount; i++) {
+            long offset = Math.min(fileSize, i * partitionSize);
+            long length = i == partitionCount - 1 ? fileSize - offset : Math.min(partitionSize, fileSize - offset);
+            StringJoiner chain = new StringJoiner(",");
+            for (Catalog.Replica replica : chains.get(i)) {
+                chain.add(replica.toString());
+            }
+            out.writeUTF("PLAN " + i + " " + offset + " " + length + " " + chain);
+        }
+        out.writeUTF("END_OF_RESPONSE");
+    }
+
+    /**
+     * Direct mode: "commit <file> [codec=<codec>] [v=<version>]" then one "<index>:<size>:<ip:port>,..." frame
+     * per partition and "END" records a file the client wrote to the slaves itself, once every
+     * partition is accounted for on live slaves.
+     */
+    void handleCommit(String command, DataInputStream in, DataOutputStream out) throws IOException {
+        List<String> record = new ArrayList<>(Arrays.asList(command.split(" ")));
+        String partitionLine;
+        while (!(partitionLine = in.readUTF()).equals("END")) {
+            record.add(partitionLine);
+        }
+        try {
+            Catalog.FileEntry entry = Catalog.FileEntry.parse(record.toArray(new String[0]));
+            if (!Catalog.validName(entry.name)) {
+                throw new IllegalArgumentException("file name " + entry.name);
+            }
+            if (entry.partitions.isEmpty()) {
+                throw new IllegalArgumentException("no partitions");
+            }
+            for (int i = 0; i < entry.partitions.size(); i++) {
+                Catalog.Partition partition = entry.partitions.get(i);
+                if (partition.index != i || partition.replicas.isEmpty()) {
+                    throw new IllegalArgumentException("partition " + i + " is missing");
+                }
+                for (Catalog.Replica replica : partition.replicas) {
+                    if (!monitor.isAlive(replica)) {
+                        throw new IllegalArgumentException("unknown slave " + replica);
+                    }
+                }
+            }
+            commitFile(entry);
+            out.writeUTF("SUCCESS: File " + entry.name + " stored in " + entry.partitions.size() + " partitions.");
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            out.writeUTF("ERROR: Invalid commit: " + e.getMessage());
+        }
+        out.writeUTF("END_OF_RESPONSE");
+    }
+
+    private void handleRmRequest(String fileName, DataOutputStream clientOut) throws IOException {
+        ReentrantLock lock = catalog.lock(fileName);
+        lock.lock();
+        try {
+            Catalog.FileEntry entry = catalog.get(fileName);
+            if (entry == null) {
+                clientOut.writeUTF("ERROR: File not found.");
+                return;
+            }
+        
+            if (entry.deduplicated()) {
+                // Chunks shared with other files stay until their last reference goes
+                releaseChunks(entry.partitions);
+            } else {
+                // One delete per slave removes every partition of the file it holds
+                for (Catalog.Replica slave : catalog.slavesOf(fileName)) {
+                    sendDeleteCommandToSlave(slave.ip, slave.port, List.of(entry.storedName()));
+                }
+            }
+        
+            catalog.remove(fileName);
+            cache.invalidate(fileName);
+            journal.append("RM " + fileName);
+        } finally {
+            lock.unlock();
         }
-    
-        filePartitionMap.remove(fileName);
-        savePersistence();
     
         clientOut.writeUTF("SUCCESS: File " + fileName + " removed.");
     }
     
-    private void sendDeleteCommandToSlave(String slaveIp, int slavePort, String fileName) {
-        DataOutputStream out = null;
+    // One name goes out as delete_partition, several as delete_partitions commands of at most COMMAND_BYTES
+    private void sendDeleteCommandToSlave(String slaveIp, int slavePort, List<String> fileNames) {
+        List<String> commands = new ArrayList<>();
+        if (fileNames.size() == 1) {
+            commands.add("delete_partition " + fileNames.get(0));
+        } else {
+            StringJoiner names = new StringJoiner(" ");
+            for (String fileName : fileNames) {
+                if (names.length() > 0 && utfLength(names.toString()) + utfLength(fileName) + 1 > COMMAND_BYTES) {
+                    commands.add("delete_partitions " + names);
+                    names = new StringJoiner(" ");
+                }
+                names.add(fileName);
+            }
+            commands.add("delete_partitions " + names);
+        }
+        SlavePool.Connection connection = null;
         try {
-            Socket slaveSocket = new Socket(slaveIp, slavePort);
-            out = new DataOutputStream(slaveSocket.getOutputStream());
-            DataInputStream in = new DataInputStream(slaveSocket.getInputStream());
-    
-            out.writeUTF("delete_partition " + fileName);
-            String response = in.readUTF();
-            if (response.equals("ACK")) {
-                System.out.println("Slave at " + slaveIp + ":" + slavePort + " deleted file: " + fileName);
-            } else {
-                System.out.println("Error deleting file on slave at " + slaveIp + ":" + slavePort);
+            for (String command : commands) {
+                connection = slavePool.borrow(slaveIp, slavePort);
+                connection.send(command);
+                String response = connection.readReply();
+                slavePool.release(connection);
+                connection = null;
+                if (response.equals("ACK")) {
+                    System.out.println("Slave at " + slaveIp + ":" + slavePort + " deleted file: " + command.substring(command.indexOf(' ') + 1));
+                } else {
+                    System.out.println("Error deleting file on slave at " + slaveIp + ":" + slavePort);
+                }
             }
-    
         } catch (IOException e) {
-            try {
-                out.writeUTF("Unreachable slave: " + slaveIp + ":" + slavePort + ". Failed to remove partition"); 
-            } catch(IOException e1) {}
+            slavePool.discard(connection);
+            System.out.println("Unreachable slave: " + slaveIp + ":" + slavePort + ". Failed to remove partition");
         }
     }
 
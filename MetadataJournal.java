@@ -0,0 +1,187 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Append-only journal of master metadata changes with periodic compact snapshots.
+ * Records are single lines that must be idempotent (replaying one twice gives the same state),
+ * and the caller applies a change in memory before appending it. A record is durable when
+ * {@link #append} returns; concurrent appends share one fsync.
+ */
+public class MetadataJournal implements Closeable {
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final int snapshotInterval;
+    private final Supplier<List<String>> snapshotter;
+    private final Object lock = new Object();
+    private final List<String> pending = new ArrayList<>();
+    private FileChannel log;
+    private long appended;
+    private long durable;
+    private int sinceSnapshot;
+    private IOException failure;
+    private Thread flusher;
+
+    /**
+     * @param snapshotter returns the records describing the whole current state
+     */
+    public MetadataJournal(String directory, String name, int snapshotInterval, Supplier<List<String>> snapshotter) {
+        snapshotFile = Paths.get(directory, name + ".dat");
+        logFile = Paths.get(directory, name + ".log");
+        this.snapshotInterval = snapshotInterval;
+        this.snapshotter = snapshotter;
+    }
+
+    /**
+     * Feeds the snapshot then the journal to {@code apply}, and opens the journal for appends.
+     */
+    public void open(Consumer<String> apply) throws IOException {
+        Files.createDirectories(logFile.getParent());
+        if (Files.exists(snapshotFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        apply.accept(line);
+                    }
+                }
+            }
+        } else {
+            System.out.println("No persistence file found. Starting fresh.");
+        }
+
+        long validLength = 0;
+        if (Files.exists(logFile)) {
+            byte[] content = Files.readAllBytes(logFile);
+            int start = 0;
+            for (int i = 0; i < content.length; i++) {
+                if (content[i] == '\n') {
+                    if (i > start) {
+                        apply.accept(new String(content, start, i - start, StandardCharsets.UTF_8));
+                        sinceSnapshot++;
+                    }
+                    start = i + 1;
+                }
+            }
+            // A torn record from a crash mid-write is dropped
+            validLength = start;
+        }
+
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.truncate(validLength);
+        log.position(validLength);
+
+        flusher = new Thread(this::flushLoop, "metadata-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void append(String record) throws IOException {
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+            pending.add(record);
+            long sequence = ++appended;
+            lock.notifyAll();
+            while (durable < sequence && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durable < sequence) {
+                throw failure;
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<String> batch;
+            long batchEnd;
+            synchronized (lock) {
+                while (pending.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                batchEnd = appended;
+            }
+
+            try {
+                StringBuilder records = new StringBuilder();
+                for (String record : batch) {
+                    records.append(record).append('\n');
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                log.force(false);
+
+                sinceSnapshot += batch.size();
+                if (sinceSnapshot >= snapshotInterval) {
+                    snapshot();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                durable = batchEnd;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the current state next to the old snapshot, swaps it in atomically, then empties the journal.
+     * A crash in between only replays records the snapshot already contains.
+     */
+    private void snapshot() throws IOException {
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(file), StandardCharsets.UTF_8))) {
+            for (String record : snapshotter.get()) {
+                writer.write(record);
+                writer.write('\n');
+            }
+            writer.flush();
+            file.force(true);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.truncate(0);
+        log.position(0);
+        log.force(true);
+        sinceSnapshot = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+}
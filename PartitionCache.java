@@ -0,0 +1,92 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * LRU cache of whole partitions for the master's get path, bounded by bytes. Partitions are
+ * kept in direct buffers, outside the GC heap; a capacity of 0 disables the cache.
+ */
+public class PartitionCache {
+    private final long capacity;
+    private final LinkedHashMap<Catalog.PartitionRef, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PartitionCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean enabled() {
+        return capacity > 0;
+    }
+
+    // Whether a partition of this size can be cached at all
+    public boolean fits(long size) {
+        return capacity > 0 && size >= 0 && size <= capacity;
+    }
+
+    /**
+     * Returns a copy of the cached partition, or null.
+     */
+    public byte[] get(String fileName, int index) {
+        ByteBuffer cached;
+        synchronized (this) {
+            cached = entries.get(new Catalog.PartitionRef(fileName, index));
+            if (cached == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        // Cached buffers are never written again, so copying outside the lock is safe
+        byte[] data = new byte[cached.capacity()];
+        cached.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Caches a partition read from the slaves. {@code current} is checked under the cache lock and
+     * must say whether the file is still the version the data was read from, so a read racing
+     * with a re-put or rm never leaves stale data behind its {@link #invalidate}.
+     */
+    public void put(String fileName, int index, byte[] data, BooleanSupplier current) {
+        if (data.length > capacity) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        synchronized (this) {
+            if (!current.getAsBoolean()) {
+                return;
+            }
+            ByteBuffer previous = entries.put(new Catalog.PartitionRef(fileName, index), buffer);
+            size += data.length - (previous == null ? 0 : previous.capacity());
+            Iterator<ByteBuffer> eldest = entries.values().iterator();
+            while (size > capacity) {
+                size -= eldest.next().capacity();
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void invalidate(String fileName) {
+        Iterator<Map.Entry<Catalog.PartitionRef, ByteBuffer>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Catalog.PartitionRef, ByteBuffer> entry = it.next();
+            if (entry.getKey().fileName.equals(fileName)) {
+                size -= entry.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized String stats() {
+        return "Cache: " + entries.size() + " partitions, " + size + "/" + capacity + " bytes, hits=" + hits
+                + " misses=" + misses + " evictions=" + evictions;
+    }
+}
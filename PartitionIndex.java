@@ -0,0 +1,174 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A slave's index of the partition files it stores, by file name then partition index, with the
+ * size and CRC32C of each. It lives in "<root>/partitions.log", one record per change, and is
+ * replayed then rewritten compactly at startup, so finding or deleting the partitions of a file
+ * never scans the directory. A slave without the log builds it once from the directory.
+ */
+public class PartitionIndex {
+    static class Entry {
+        final long size;
+        final int crc;
+
+        Entry(long size, int crc) {
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    private final File root;
+    private final Map<String, Map<Integer, Entry>> files = new HashMap<>();
+    private FileChannel log;
+
+    public PartitionIndex(String localRoot) {
+        root = new File(localRoot);
+    }
+
+    public synchronized void open() throws IOException {
+        root.mkdirs();
+        Path logFile = new File(root, "partitions.log").toPath();
+        if (Files.exists(logFile)) {
+            for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+                apply(line);
+            }
+        } else {
+            scan();
+        }
+        // A partition deleted behind the slave's back is forgotten
+        for (Map.Entry<String, Map<Integer, Entry>> file : files.entrySet()) {
+            file.getValue().keySet().removeIf(partitionIndex -> !partitionFile(file.getKey(), partitionIndex).exists());
+        }
+        files.values().removeIf(Map::isEmpty);
+
+        Path temporary = logFile.resolveSibling("partitions.log.tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<Integer, Entry>> file : files.entrySet()) {
+                for (Map.Entry<Integer, Entry> partition : file.getValue().entrySet()) {
+                    writer.write(record(file.getKey(), partition.getKey(), partition.getValue()));
+                }
+            }
+        }
+        Files.move(temporary, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Partitions stored before the index existed: "<file>_part<index>.txt"
+    private void scan() throws IOException {
+        File[] partitionFiles = root.listFiles((dir, name) -> name.contains("_part") && name.endsWith(".txt"));
+        if (partitionFiles == null) {
+            return;
+        }
+        for (File partitionFile : partitionFiles) {
+            String name = partitionFile.getName();
+            int separator = name.lastIndexOf("_part");
+            try {
+                int partitionIndex = Integer.parseInt(name.substring(separator + 5, name.length() - 4));
+                try (FileChannel file = FileChannel.open(partitionFile.toPath(), StandardOpenOption.READ)) {
+                    Entry entry = new Entry(file.size(), Checksums.read(file).value());
+                    files.computeIfAbsent(name.substring(0, separator), k -> new HashMap<>()).put(partitionIndex, entry);
+                }
+            } catch (NumberFormatException e) {
+                // Not a partition
+            }
+        }
+        System.out.println("Indexed " + partitionFiles.length + " partition files in " + root);
+    }
+
+    // ADD <index> <size> <crc> <file> | DEL <index> <file>
+    private void apply(String line) {
+        String[] parts = line.split(" ", 5);
+        try {
+            if (parts[0].equals("ADD") && parts.length == 5) {
+                Entry entry = new Entry(Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+                files.computeIfAbsent(parts[4], k -> new HashMap<>()).put(Integer.parseInt(parts[1]), entry);
+            } else if (parts[0].equals("DEL") && parts.length == 3) {
+                Map<Integer, Entry> partitions = files.get(parts[2]);
+                if (partitions != null) {
+                    partitions.remove(Integer.parseInt(parts[1]));
+                    if (partitions.isEmpty()) {
+                        files.remove(parts[2]);
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            // A record torn by a crash
+        }
+    }
+
+    private static String record(String fileName, int partitionIndex, Entry entry) {
+        return "ADD " + partitionIndex + " " + entry.size + " " + entry.crc + " " + fileName + "\n";
+    }
+
+    private void log(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+    }
+
+    public File partitionFile(String fileName, int partitionIndex) {
+        return new File(root, fileName + "_part" + partitionIndex + ".txt");
+    }
+
+    // The record is forced, so a partition acknowledged after put is still known after a power loss
+    public synchronized void put(String fileName, int partitionIndex, long size, int crc) throws IOException {
+        Entry entry = new Entry(size, crc);
+        files.computeIfAbsent(fileName, k -> new HashMap<>()).put(partitionIndex, entry);
+        log(record(fileName, partitionIndex, entry));
+        log.force(false);
+    }
+
+    public synchronized boolean remove(String fileName, int partitionIndex) throws IOException {
+        Map<Integer, Entry> partitions = files.get(fileName);
+        if (partitions == null || partitions.remove(partitionIndex) == null) {
+            return false;
+        }
+        if (partitions.isEmpty()) {
+            files.remove(fileName);
+        }
+        log("DEL " + partitionIndex + " " + fileName + "\n");
+        return true;
+    }
+
+    // Forgets every partition of the file and returns their indexes
+    public synchronized List<Integer> removeFile(String fileName) throws IOException {
+        Map<Integer, Entry> partitions = files.remove(fileName);
+        if (partitions == null) {
+            return Collections.emptyList();
+        }
+        for (Integer partitionIndex : partitions.keySet()) {
+            log("DEL " + partitionIndex + " " + fileName + "\n");
+        }
+        return new ArrayList<>(partitions.keySet());
+    }
+
+    // "<file>:<index>" of every partition, for the scrubber
+    public synchronized List<String> partitions() {
+        List<String> partitions = new ArrayList<>();
+        for (Map.Entry<String, Map<Integer, Entry>> file : files.entrySet()) {
+            for (Integer partitionIndex : file.getValue().keySet()) {
+                partitions.add(file.getKey() + ":" + partitionIndex);
+            }
+        }
+        return partitions;
+    }
+
+    // "<index> <size> <crc> <file>" of every partition, as reported to the master
+    public synchronized List<String> inventory() {
+        List<String> inventory = new ArrayList<>();
+        for (Map.Entry<String, Map<Integer, Entry>> file : files.entrySet()) {
+            for (Map.Entry<Integer, Entry> partition : file.getValue().entrySet()) {
+                inventory.add(partition.getKey() + " " + partition.getValue().size + " " + partition.getValue().crc + " " + file.getKey());
+            }
+        }
+        return inventory;
+    }
+}
@@ -0,0 +1,174 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures the placement strategies against simulated clusters, even and skewed, then the
+ * transfer path over loopback. For placement it reports the time per decision and how evenly
+ * the disks filled: the spread between the fullest and emptiest slave, the slaves pushed past
+ * their capacity, and the share of replicas sent to the busy slaves. Heartbeats are simulated
+ * by charging each placed partition to its slaves' free bytes before the next file.
+ * Usage: java server.PlacementBenchmark [files] [transferMB]
+ */
+public class PlacementBenchmark {
+    static final long GB = 1L << 30;
+    static final long MB = 1L << 20;
+    static final int REPLICAS = 3;
+    static final long MIN_PARTITION_SIZE = 64 * MB;
+    static final String[] STRATEGIES = {"round_robin", "least_loaded", "capacity", "consistent_hash"};
+    static final String[] CLUSTERS = {"even", "skewed_disk", "skewed_load", "mixed"};
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int transferMB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        // Once untimed, so the first rows are not paying for the JIT
+        for (String strategy : STRATEGIES) {
+            placement(strategy, "even", files, false);
+        }
+        System.out.println("Placement of " + files + " files, " + REPLICAS + " replicas each");
+        System.out.printf("%-16s %-12s %10s %8s %8s %6s %6s%n", "strategy", "cluster", "us/place", "min%", "max%", "over", "busy%");
+        for (String cluster : CLUSTERS) {
+            for (String strategy : STRATEGIES) {
+                placement(strategy, cluster, files, true);
+            }
+        }
+
+        System.out.println("Transfer of " + transferMB + " MB over loopback");
+        Path source = Files.createTempFile("placement-benchmark", ".dat");
+        try {
+            byte[] block = new byte[(int) MB];
+            new Random(1).nextBytes(block);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(source))) {
+                for (int i = 0; i < transferMB; i++) {
+                    out.write(block);
+                }
+            }
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("stream copy (proxy path)      %8.1f MB/s%n", transfer(source, false));
+                System.out.printf("transferTo/From (slave path)  %8.1f MB/s%n", transfer(source, true));
+            }
+        } finally {
+            Files.deleteIfExists(source);
+        }
+    }
+
+    // 8 slaves of 1 TB; the skewed ones start with two of them nearly full, or two of them busy
+    static List<SlaveMonitor.Status> cluster(String shape) {
+        List<SlaveMonitor.Status> slaves = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            SlaveMonitor.Status status = new SlaveMonitor.Status(new Catalog.Replica("10.0.0." + (i + 1), 9081), "");
+            status.totalBytes = 1024 * GB;
+            status.freeBytes = status.totalBytes;
+            boolean skewed = i < 2;
+            if (skewed && (shape.equals("skewed_disk") || shape.equals("mixed"))) {
+                status.freeBytes = 64 * GB;
+            }
+            if (skewed && (shape.equals("skewed_load") || shape.equals("mixed"))) {
+                status.load = 32;
+            } else if (shape.equals("mixed")) {
+                status.load = i % 3;
+            }
+            status.alive = true;
+            slaves.add(status);
+        }
+        return slaves;
+    }
+
+    static void placement(String name, String shape, int files, boolean report) {
+        PlacementStrategy strategy = PlacementStrategy.create(name, MIN_PARTITION_SIZE);
+        List<SlaveMonitor.Status> slaves = cluster(shape);
+        Map<Catalog.Replica, SlaveMonitor.Status> bySlave = new HashMap<>();
+        for (SlaveMonitor.Status status : slaves) {
+            bySlave.put(status.slave, status);
+        }
+        // Sizes from 1 MB to 4 GB, most of them small, the same for every strategy
+        Random random = new Random(42);
+        long nanos = 0;
+        long replicas = 0;
+        long busy = 0;
+        for (int f = 0; f < files; f++) {
+            long size = (long) (MB * Math.pow(4096, random.nextDouble() * random.nextDouble()));
+            int count = strategy.partitionCount(size, 0, slaves.size());
+            long partitionSize = (size + count - 1) / count;
+            long start = System.nanoTime();
+            List<List<Catalog.Replica>> placement = strategy.place("file" + f, count, partitionSize, REPLICAS, slaves);
+            nanos += System.nanoTime() - start;
+            for (List<Catalog.Replica> chain : placement) {
+                for (Catalog.Replica replica : chain) {
+                    SlaveMonitor.Status status = bySlave.get(replica);
+                    status.freeBytes -= partitionSize;
+                    replicas++;
+                    if (status.load >= 32) {
+                        busy++;
+                    }
+                }
+            }
+        }
+        if (!report) {
+            return;
+        }
+        double least = 100;
+        double most = 0;
+        int over = 0;
+        for (SlaveMonitor.Status status : slaves) {
+            double used = 100.0 * (status.totalBytes - status.freeBytes) / status.totalBytes;
+            least = Math.min(least, used);
+            most = Math.max(most, used);
+            if (status.freeBytes < 0) {
+                over++;
+            }
+        }
+        System.out.printf("%-16s %-12s %10.2f %8.1f %8.1f %6d %6.1f%n", name, shape, nanos / 1000.0 / files, least, most, over,
+                100.0 * busy / replicas);
+    }
+
+    // One file over a loopback connection, framed as the master and slaves frame partitions
+    static double transfer(Path source, boolean zeroCopy) throws Exception {
+        Path target = Files.createTempFile("placement-benchmark", ".recv");
+        ExecutorService receiver = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Future<Long> received = receiver.submit(() -> {
+                try (SocketChannel channel = server.accept();
+                     FileChannel file = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+                    if (zeroCopy) {
+                        return ChunkedInputStream.receiveFile(in, channel, file);
+                    }
+                    long total = 0;
+                    byte[] buffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+                    InputStream chunks = new ChunkedInputStream(new BufferedInputStream(in));
+                    int n;
+                    while ((n = chunks.read(buffer)) > 0) {
+                        total += n;
+                    }
+                    return total;
+                }
+            });
+            long start = System.nanoTime();
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+                 FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                if (zeroCopy) {
+                    ChunkedOutputStream.sendFile(file, 0, file.size(), out, channel);
+                } else {
+                    ChunkedOutputStream chunks = new ChunkedOutputStream(out, ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+                    try (InputStream in = new BufferedInputStream(Channels.newInputStream(file))) {
+                        in.transferTo(chunks);
+                    }
+                    chunks.close();
+                }
+                long bytes = received.get();
+                return bytes / (double) MB / ((System.nanoTime() - start) / 1e9);
+            }
+        } finally {
+            receiver.shutdown();
+            Files.deleteIfExists(target);
+        }
+    }
+}
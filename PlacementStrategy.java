@@ -0,0 +1,240 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how many partitions a file gets and which slaves hold each of them, from the load and
+ * disk figures the slaves report in their heartbeats.
+ */
+public abstract class PlacementStrategy {
+    final long minPartitionSize;
+
+    PlacementStrategy(long minPartitionSize) {
+        this.minPartitionSize = minPartitionSize;
+    }
+
+    public static PlacementStrategy create(String name, long minPartitionSize) {
+        switch (name) {
+            case "round_robin":
+                return new RoundRobin(minPartitionSize);
+            case "least_loaded":
+                return new LeastLoaded(minPartitionSize);
+            case "capacity":
+                return new CapacityWeighted(minPartitionSize);
+            case "consistent_hash":
+                return new ConsistentHash(minPartitionSize);
+            default:
+                throw new IllegalArgumentException("Unknown placement: " + name);
+        }
+    }
+
+    /**
+     * Fixed-size blocks when blockSize > 0, otherwise one partition per slave but none smaller
+     * than minPartitionSize, so a small file is not scattered in tiny pieces.
+     */
+    public int partitionCount(long fileSize, long blockSize, int slaveCount) {
+        if (blockSize > 0) {
+            return (int) Math.max(1, (fileSize + blockSize - 1) / blockSize);
+        }
+        long bySize = Math.max(1, (fileSize + minPartitionSize - 1) / minPartitionSize);
+        return (int) Math.max(1, Math.min(slaveCount, bySize));
+    }
+
+    /**
+     * Returns, for each partition, the distinct slaves to write it to: the primary first, then its
+     * replication chain. Each chain has min(replicas, slaves.size()) entries.
+     */
+    public abstract List<List<Catalog.Replica>> place(String fileName, int partitionCount, long partitionSize, int replicas,
+            List<SlaveMonitor.Status> slaves);
+
+    // Slaves in a stable order, so strategies that walk them give the same answer for the same cluster
+    static List<SlaveMonitor.Status> sorted(List<SlaveMonitor.Status> slaves) {
+        List<SlaveMonitor.Status> sorted = new ArrayList<>(slaves);
+        sorted.sort(Comparator.comparing(status -> status.slave.toString()));
+        return sorted;
+    }
+
+    static class RoundRobin extends PlacementStrategy {
+        // Rotates the starting slave between files so single-partition files spread too
+        private final AtomicInteger next = new AtomicInteger();
+
+        RoundRobin(long minPartitionSize) {
+            super(minPartitionSize);
+        }
+
+        @Override
+        public List<List<Catalog.Replica>> place(String fileName, int partitionCount, long partitionSize, int replicas,
+                List<SlaveMonitor.Status> slaves) {
+            List<SlaveMonitor.Status> ordered = sorted(slaves);
+            int start = Math.floorMod(next.getAndAdd(partitionCount), ordered.size());
+            List<List<Catalog.Replica>> placement = new ArrayList<>();
+            for (int i = 0; i < partitionCount; i++) {
+                List<Catalog.Replica> chain = new ArrayList<>();
+                for (int j = 0; j < Math.min(replicas, ordered.size()); j++) {
+                    chain.add(ordered.get((start + i + j) % ordered.size()).slave);
+                }
+                placement.add(chain);
+            }
+            return placement;
+        }
+    }
+
+    /**
+     * Each replica goes to the slave with the fewest commands in flight, counting what this file
+     * already put on it, and bytes free as the tie-breaker.
+     */
+    static class LeastLoaded extends PlacementStrategy {
+        LeastLoaded(long minPartitionSize) {
+            super(minPartitionSize);
+        }
+
+        @Override
+        public List<List<Catalog.Replica>> place(String fileName, int partitionCount, long partitionSize, int replicas,
+                List<SlaveMonitor.Status> slaves) {
+            List<SlaveMonitor.Status> ordered = sorted(slaves);
+            Map<Catalog.Replica, Integer> assigned = new HashMap<>();
+            List<List<Catalog.Replica>> placement = new ArrayList<>();
+            for (int i = 0; i < partitionCount; i++) {
+                List<Catalog.Replica> chain = new ArrayList<>();
+                for (int j = 0; j < Math.min(replicas, ordered.size()); j++) {
+                    SlaveMonitor.Status best = null;
+                    for (SlaveMonitor.Status status : ordered) {
+                        if (chain.contains(status.slave)) {
+                            continue;
+                        }
+                        if (best == null || load(status, assigned) < load(best, assigned)
+                                || (load(status, assigned) == load(best, assigned) && status.freeBytes() > best.freeBytes())) {
+                            best = status;
+                        }
+                    }
+                    chain.add(best.slave);
+                    assigned.merge(best.slave, 1, Integer::sum);
+                }
+                placement.add(chain);
+            }
+            return placement;
+        }
+
+        private static int load(SlaveMonitor.Status status, Map<Catalog.Replica, Integer> assigned) {
+            return status.load() + assigned.getOrDefault(status.slave, 0);
+        }
+    }
+
+    /**
+     * Picks slaves at random in proportion to their free disk, less what this file already put
+     * on them, so emptier slaves fill up faster. Slaves that report no disk figures weigh 1 byte.
+     */
+    static class CapacityWeighted extends PlacementStrategy {
+        CapacityWeighted(long minPartitionSize) {
+            super(minPartitionSize);
+        }
+
+        @Override
+        public List<List<Catalog.Replica>> place(String fileName, int partitionCount, long partitionSize, int replicas,
+                List<SlaveMonitor.Status> slaves) {
+            List<SlaveMonitor.Status> ordered = sorted(slaves);
+            Map<Catalog.Replica, Long> free = new HashMap<>();
+            for (SlaveMonitor.Status status : ordered) {
+                free.put(status.slave, status.freeBytes());
+            }
+            List<List<Catalog.Replica>> placement = new ArrayList<>();
+            for (int i = 0; i < partitionCount; i++) {
+                List<Catalog.Replica> chain = new ArrayList<>();
+                for (int j = 0; j < Math.min(replicas, ordered.size()); j++) {
+                    double total = 0;
+                    for (SlaveMonitor.Status status : ordered) {
+                        if (!chain.contains(status.slave)) {
+                            total += Math.max(1, free.get(status.slave));
+                        }
+                    }
+                    double pick = ThreadLocalRandom.current().nextDouble(total);
+                    Catalog.Replica chosen = null;
+                    for (SlaveMonitor.Status status : ordered) {
+                        if (chain.contains(status.slave)) {
+                            continue;
+                        }
+                        chosen = status.slave;
+                        pick -= Math.max(1, free.get(status.slave));
+                        if (pick < 0) {
+                            break;
+                        }
+                    }
+                    chain.add(chosen);
+                    free.merge(chosen, -partitionSize, Long::sum);
+                }
+                placement.add(chain);
+            }
+            return placement;
+        }
+    }
+
+    /**
+     * Places "file#index" on a hash ring of virtual nodes, so adding or removing a slave only
+     * moves the partitions next to it on the ring.
+     */
+    static class ConsistentHash extends PlacementStrategy {
+        static final int VIRTUAL_NODES = 64;
+
+        ConsistentHash(long minPartitionSize) {
+            super(minPartitionSize);
+        }
+
+        @Override
+        public List<List<Catalog.Replica>> place(String fileName, int partitionCount, long partitionSize, int replicas,
+                List<SlaveMonitor.Status> slaves) {
+            TreeMap<Long, Catalog.Replica> ring = ring(slaves);
+            List<List<Catalog.Replica>> placement = new ArrayList<>();
+            for (int i = 0; i < partitionCount; i++) {
+                placement.add(chain(ring, fileName + "#" + i, Math.min(replicas, slaves.size())));
+            }
+            return placement;
+        }
+
+        static TreeMap<Long, Catalog.Replica> ring(List<SlaveMonitor.Status> slaves) {
+            TreeMap<Long, Catalog.Replica> ring = new TreeMap<>();
+            for (SlaveMonitor.Status status : slaves) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    ring.put(hash(status.slave + "#" + v), status.slave);
+                }
+            }
+            return ring;
+        }
+
+        // The first wanted distinct slaves clockwise from key
+        static List<Catalog.Replica> chain(TreeMap<Long, Catalog.Replica> ring, String key, int wanted) {
+            List<Catalog.Replica> chain = new ArrayList<>();
+            Iterator<Catalog.Replica> walk = clockwise(ring, hash(key));
+            while (chain.size() < wanted) {
+                Catalog.Replica slave = walk.next();
+                if (!chain.contains(slave)) {
+                    chain.add(slave);
+                }
+            }
+            return chain;
+        }
+
+        private static Iterator<Catalog.Replica> clockwise(TreeMap<Long, Catalog.Replica> ring, long from) {
+            List<Catalog.Replica> order = new ArrayList<>(ring.tailMap(from, true).values());
+            order.addAll(ring.headMap(from, false).values());
+            return order.iterator();
+        }
+
+        // 64-bit FNV-1a with a final avalanche, since keys differ only in their last characters
+        static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Checks against a running master that ranged gets return exactly the bytes asked for, for a
+ * plain file and for one compressed with every codec: ranges at the start, inside a codec block,
+ * across block and partition boundaries, and past the end. Compressed partitions hold whole
+ * blocks, so any range has to be cut out of the decoded data rather than of the stored bytes.
+ * Usage: java server.RangedGetCheck <ip>:<port>
+ */
+public class RangedGetCheck {
+    static final int SIZE = 1000000;
+    static final int BLOCK_SIZE = 300000;
+
+    public static void main(String[] args) throws IOException {
+        String[] address = args[0].split(":");
+        byte[] content = content();
+        long[][] ranges = {{0, 100}, {1000, 5000}, {ChunkedOutputStream.DEFAULT_CHUNK_SIZE - 10, 20},
+                {BLOCK_SIZE - 10, 20}, {BLOCK_SIZE + 70000, 250000}, {SIZE - 50, 100}, {0, SIZE}};
+        List<String> codecs = new ArrayList<>();
+        codecs.add(Codec.NONE);
+        codecs.addAll(Codec.names());
+        boolean ok = true;
+        try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            for (String codec : codecs) {
+                String name = "ranged-get-check-" + codec + ".dat";
+                out.writeUTF("put " + name + " " + SIZE + " " + BLOCK_SIZE + " codec=" + codec);
+                ChunkedOutputStream upload = new ChunkedOutputStream(out, ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+                upload.write(content);
+                upload.close();
+                String reply = lastLine(in);
+                if (!reply.startsWith("SUCCESS")) {
+                    System.out.println(codec + ": put failed: " + reply);
+                    ok = false;
+                    continue;
+                }
+                for (long[] range : ranges) {
+                    ok &= check(codec, name, range[0], range[1], content, in, out);
+                }
+                out.writeUTF("rm " + name);
+                out.flush();
+                in.readUTF();
+            }
+        }
+        System.out.println(ok ? "RangedGetCheck: OK" : "RangedGetCheck: FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // Text that compresses well, with stretches of random bytes that do not
+    static byte[] content() {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(SIZE);
+        Random random = new Random(7);
+        for (int line = 0; content.size() < SIZE; line++) {
+            if (line % 500 == 499) {
+                byte[] noise = new byte[4096];
+                random.nextBytes(noise);
+                content.writeBytes(noise);
+            } else {
+                content.writeBytes(("line " + line + " of the ranged get check\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        return Arrays.copyOf(content.toByteArray(), SIZE);
+    }
+
+    static boolean check(String codec, String name, long offset, long length, byte[] content, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        out.writeUTF("get " + name + " " + offset + " " + length);
+        out.flush();
+        String reply = in.readUTF();
+        String range = codec + " [" + offset + ", +" + length + ")";
+        if (!reply.equals("SUCCESS")) {
+            System.out.println(range + ": " + reply);
+            return false;
+        }
+        byte[] received = new ChunkedInputStream(in).readAllBytes();
+        String status = in.readUTF();
+        int from = (int) Math.min(offset, content.length);
+        byte[] expected = Arrays.copyOfRange(content, from, (int) Math.min(content.length, offset + length));
+        if (!status.equals("EOF") || !Arrays.equals(expected, received)) {
+            System.out.println(range + ": got " + received.length + " bytes, expected " + expected.length + " (" + status + ")");
+            return false;
+        }
+        return true;
+    }
+
+    static String lastLine(DataInputStream in) throws IOException {
+        String last = "";
+        String line;
+        while (!(line = in.readUTF()).equals("END_OF_RESPONSE")) {
+            last = line;
+        }
+        return last;
+    }
+}
@@ -0,0 +1,215 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections for the master and the slaves and hands each command to a {@link Handler}.
+ * Two modes are available, selected with server_mode:
+ * <ul>
+ * <li>{@code threads}: one (virtual, when the JVM has them) thread per connection.</li>
+ * <li>{@code nio}: a selector watches idle connections and only ready ones take a worker thread.</li>
+ * </ul>
+ * Both stop accepting once max_connections are open, leaving new clients in the listen backlog.
+ */
+public abstract class ServerEngine {
+
+    public interface Handler {
+        /**
+         * Serves one command from the connection. Returns false when the connection should be closed.
+         */
+        boolean handle(Connection connection) throws IOException;
+    }
+
+    public static class Connection {
+        public final SocketChannel channel;
+        public final DataInputStream in;
+        public final DataOutputStream out;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    final int port;
+    final int maxConnections;
+    final Handler handler;
+
+    ServerEngine(int port, int maxConnections, Handler handler) {
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.handler = handler;
+    }
+
+    public static ServerEngine create(String mode, int port, int maxConnections, int workerThreads, Handler handler) {
+        if (mode.equals("nio")) {
+            return new EventLoop(port, maxConnections, workerThreads, handler);
+        }
+        if (mode.equals("threads")) {
+            return new ThreadPerConnection(port, maxConnections, handler);
+        }
+        throw new IllegalArgumentException("Unknown server_mode: " + mode);
+    }
+
+    public abstract void serve() throws IOException;
+
+    /**
+     * Runs one command; returns false once the connection is closed.
+     */
+    boolean serveOne(Connection connection) {
+        try {
+            boolean keepOpen = handler.handle(connection);
+            connection.out.flush();
+            if (keepOpen) {
+                return true;
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection between commands
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        connection.close();
+        return false;
+    }
+
+    static class ThreadPerConnection extends ServerEngine {
+        private final Semaphore admission;
+        private final ExecutorService executor;
+
+        ThreadPerConnection(int port, int maxConnections, Handler handler) {
+            super(port, maxConnections, handler);
+            admission = new Semaphore(maxConnections);
+            executor = connectionExecutor();
+        }
+
+        static ExecutorService connectionExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available on this JVM, using platform threads.");
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        @Override
+        public void serve() throws IOException {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(port));
+                while (true) {
+                    admission.acquireUninterruptibly();
+                    SocketChannel channel = server.accept();
+                    executor.execute(() -> {
+                        try {
+                            Connection connection = new Connection(channel);
+                            while (serveOne(connection)) {
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            admission.release();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    static class EventLoop extends ServerEngine {
+        private final ExecutorService workers;
+        private final Queue<Connection> returned = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger open = new AtomicInteger();
+        private Selector selector;
+
+        EventLoop(int port, int maxConnections, int workerThreads, Handler handler) {
+            super(port, maxConnections, handler);
+            workers = Executors.newFixedThreadPool(workerThreads);
+        }
+
+        @Override
+        public void serve() throws IOException {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(port));
+                server.configureBlocking(false);
+                selector = Selector.open();
+                SelectionKey acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+
+                while (true) {
+                    if (selector.selectedKeys().isEmpty()) {
+                        selector.select();
+                    }
+
+                    // Idle connections handed back by the workers wait here for their next command
+                    Connection connection;
+                    while ((connection = returned.poll()) != null) {
+                        try {
+                            connection.channel.configureBlocking(false);
+                            connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (IOException e) {
+                            closeConnection(connection);
+                        }
+                    }
+
+                    List<Connection> ready = new ArrayList<>();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            SocketChannel channel = server.accept();
+                            if (channel != null) {
+                                open.incrementAndGet();
+                                channel.configureBlocking(false);
+                                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                            }
+                        } else if (key.isReadable()) {
+                            key.cancel();
+                            ready.add((Connection) key.attachment());
+                        }
+                    }
+
+                    // Backpressure: stop accepting while the connection limit is reached
+                    acceptKey.interestOps(open.get() < maxConnections ? SelectionKey.OP_ACCEPT : 0);
+
+                    if (!ready.isEmpty()) {
+                        // Flush the cancelled keys so the channels can switch back to blocking mode
+                        selector.selectNow();
+                        for (Connection readyConnection : ready) {
+                            readyConnection.channel.configureBlocking(true);
+                            workers.execute(() -> {
+                                if (serveOne(readyConnection)) {
+                                    returned.add(readyConnection);
+                                } else {
+                                    open.decrementAndGet();
+                                }
+                                selector.wakeup();
+                            });
+                        }
+                    }
+                }
+            }
+        }
+
+        private void closeConnection(Connection connection) {
+            connection.close();
+            open.decrementAndGet();
+        }
+    }
+}
@@ -2,13 +2,34 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 public class Slave {
     private String ip;
     private int port;
     private String localRoot;
     private int masterPort;
+    private int chunkSize;
+    private SlavePool peers;
+    private String serverMode;
+    private int maxConnections;
+    private int workerThreads;
+    private int heartbeatInterval;
+    private long scrubBytesPerSecond;
+    private long scrubInterval;
+    private ChunkStore chunks;
+    // Partitions of at most packMaxSize bytes are packed into shared containers rather than a file each
+    private ContainerStore containers;
+    private long packMaxSize;
+    // The partition files held here, so no lookup or delete scans localRoot
+    private PartitionIndex partitions;
+    private final AtomicInteger activeRequests = new AtomicInteger();
     String configFile = "../conf/slave.conf";
 
     public Slave(int  index) {
@@ -25,7 +46,24 @@ public class Slave {
             ip = prop.getProperty("slave" + index + ".ip");
             port = Integer.parseInt(prop.getProperty("slave" + index + ".port"));
             localRoot = prop.getProperty("slave" + index + ".local_root");
+            chunks = new ChunkStore(localRoot);
+            packMaxSize = Long.parseLong(prop.getProperty("pack_max_size", "65536"));
+            containers = new ContainerStore(localRoot, Long.parseLong(prop.getProperty("container_size", "67108864")));
+            containers.open();
+            partitions = new PartitionIndex(localRoot);
+            partitions.open();
             masterPort = Integer.parseInt(prop.getProperty("master_port"));
+            chunkSize = Integer.parseInt(prop.getProperty("chunk_size", String.valueOf(ChunkedOutputStream.DEFAULT_CHUNK_SIZE)));
+            serverMode = prop.getProperty("server_mode", "threads");
+            maxConnections = Integer.parseInt(prop.getProperty("max_connections", "1024"));
+            workerThreads = Integer.parseInt(prop.getProperty("worker_threads", "32"));
+            heartbeatInterval = Integer.parseInt(prop.getProperty("heartbeat_interval_ms", "2000"));
+            scrubBytesPerSecond = Long.parseLong(prop.getProperty("scrub_bytes_per_sec", "1048576"));
+            scrubInterval = Long.parseLong(prop.getProperty("scrub_interval_ms", "3600000"));
+            int timeout = Integer.parseInt(prop.getProperty("ack_timeout_ms", "30000"));
+            peers = new SlavePool(timeout, timeout,
+                    Long.parseLong(prop.getProperty("pool_idle_timeout_ms", "60000")),
+                    Integer.parseInt(prop.getProperty("pool_max_idle", "8")));
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -33,158 +71,657 @@ public class Slave {
     }
 
     public void sendRegisterMessage() {
-        try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setBroadcast(true);
-
-            String message = "REGISTER:" + ip + ":" + port + ":" + localRoot + ":" + masterPort;
-            byte[] buffer = message.getBytes();
-
-            InetAddress masterAddress = InetAddress.getByName("255.255.255.255"); 
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, masterAddress, masterPort);
-
-            socket.send(packet);
+        String message = "REGISTER:" + ip + ":" + port + ":" + localRoot + ":" + masterPort;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            broadcast(socket, message);
             System.out.println("Slave sent REGISTER message to master: " + message);
-            socket.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public void listenForMasterCommands() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Slave listening for master commands on port " + port);
+    /**
+     * Tells the master every heartbeatInterval that this slave is alive, how many commands it is
+     * serving and how much disk it has left. A master that restarts relearns the slaves from them.
+     */
+    public void startHeartbeats() {
+        Thread heartbeat = new Thread(() -> {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                File root = new File(localRoot);
+                root.mkdirs();
+                while (!Thread.currentThread().isInterrupted()) {
+                    String message = "HEARTBEAT:" + activeRequests.get() + ":" + root.getUsableSpace() + ":" + root.getTotalSpace()
+                            + ":" + ip + ":" + port + ":" + localRoot + ":" + masterPort;
+                    try {
+                        broadcast(socket, message);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    Thread.sleep(heartbeatInterval);
+                }
+            } catch (SocketException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+            }
+        }, "heartbeat-" + port);
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
 
-            while (true) {
-                Socket masterSocket = serverSocket.accept();
-                new Thread(() -> handleMasterCommand(masterSocket)).start();
+    /**
+     * Re-reads every partition against its checksums, scrubBytesPerSecond at most, one pass every
+     * scrubInterval, and reports the corrupt ones to the master so it can repair them.
+     */
+    public void startScrubber() {
+        if (scrubBytesPerSecond <= 0) {
+            return;
+        }
+        Thread scrubber = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(scrubInterval);
+                    for (String partition : partitions.partitions()) {
+                        int separator = partition.lastIndexOf(':');
+                        scrub(partition.substring(0, separator), Integer.parseInt(partition.substring(separator + 1)));
+                    }
+                    for (String partition : containers.partitions()) {
+                        int separator = partition.lastIndexOf(':');
+                        scrubPacked(partition.substring(0, separator), Integer.parseInt(partition.substring(separator + 1)));
+                    }
+                    try {
+                        for (int container : containers.compact()) {
+                            System.out.println("Compacted container: pack-" + container + ".dat");
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "scrubber-" + port);
+        scrubber.setDaemon(true);
+        scrubber.start();
+    }
+
+    private void scrub(String fileName, int partitionIndex) throws InterruptedException {
+        File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+        try (FileChannel file = FileChannel.open(partitionFile.toPath(), StandardOpenOption.READ)) {
+            int[] sums = Checksums.load(partitionFile);
+            if (sums == null) {
+                return;
+            }
+            boolean intact = sums.length == Checksums.blocks(file.size());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Checksums.BLOCK_SIZE);
+            for (int block = 0; intact && block < sums.length; block++) {
+                intact = Checksums.verifyBlock(file, sums, block, buffer);
+                Thread.sleep(Checksums.BLOCK_SIZE * 1000L / scrubBytesPerSecond);
+            }
+            if (!intact) {
+                corrupt(fileName, partitionIndex);
+            }
+        } catch (IOException e) {
+            // Deleted or rewritten while being scrubbed
+        }
+    }
+
+    private void scrubPacked(String fileName, int partitionIndex) throws InterruptedException {
+        try {
+            byte[] data = containers.read(fileName, partitionIndex);
+            if (data == ContainerStore.CORRUPT) {
+                corrupt(fileName, partitionIndex);
+            } else if (data != null) {
+                Thread.sleep(data.length * 1000L / scrubBytesPerSecond);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void handleMasterCommand(Socket masterSocket) {
-        try (DataInputStream in = new DataInputStream(masterSocket.getInputStream());
-             DataOutputStream out = new DataOutputStream(masterSocket.getOutputStream())) {
+    private void corrupt(String fileName, int partitionIndex) {
+        System.out.println("Corrupt partition: " + fileName + " (Index: " + partitionIndex + ")");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            broadcast(socket, "CORRUPT:" + ip + ":" + port + ":" + partitionIndex + ":" + fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void broadcast(DatagramSocket socket, String message) throws IOException {
+        socket.setBroadcast(true);
+        byte[] buffer = message.getBytes();
+        InetAddress masterAddress = InetAddress.getByName("255.255.255.255"); 
+        socket.send(new DatagramPacket(buffer, buffer.length, masterAddress, masterPort));
+    }
+
+    public void listenForMasterCommands() {
+        try {
+            ServerEngine engine = ServerEngine.create(serverMode, port, maxConnections, workerThreads, this::handleMasterCommand);
+            System.out.println("Slave listening for master commands on port " + port + " (" + serverMode + ")");
+            engine.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            String command = in.readUTF();
-            if (command.startsWith("replied_partition ")) {
-                String[] parts = command.split(" ", 4);
-                String fileName = parts[1];
-                int partitionIndex = Integer.parseInt(parts[2]);
-                String fileContent = parts[3];
+    // Connections are pooled by the master and peers: every command is tagged with a request ID to echo back
+    private boolean handleMasterCommand(ServerEngine.Connection connection) throws IOException {
+        long requestId = connection.in.readLong();
+        String command = connection.in.readUTF();
+        connection.out.writeLong(requestId);
+        activeRequests.incrementAndGet();
+        try {
+            handleCommand(command, connection.in, connection.out, connection.channel);
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+        return true;
+    }
 
-                storePartition(fileName, partitionIndex, fileContent);
+    private void handleCommand(String command, DataInputStream in, DataOutputStream out, SocketChannel channel) throws IOException {
+        if (command.equals("ping")) {
+            out.writeUTF("PONG");
+        } else if (command.startsWith("replied_partition ")) {
+            String[] parts = command.split(" ", 3);
+            String fileName = parts[1];
+            int partitionIndex = Integer.parseInt(parts[2]);
 
-                System.out.println("Partition stored and ACK sent to master.");
+            storePartition(fileName, partitionIndex, in, channel);
+            out.writeUTF("ACK:" + ip + ":" + port + ":" + fileName + ":" + partitionIndex);
 
-            } if (command.startsWith("partition ")) {
-                String[] parts = command.split(" ", 5);
-                String fileName = parts[1];
-                int partitionIndex = Integer.parseInt(parts[2]);
-                String replicationList = parts[3];
-                String fileContent = parts[4];
+            System.out.println("Partition stored and ACK sent to master.");
 
-                storePartition(fileName, partitionIndex, fileContent);
-                out.writeUTF("ACK:" + ip + ":" + port + ":" + fileName + ":" + partitionIndex);
+        } else if (command.startsWith("partition ")) {
+            String[] parts = command.split(" ", 4);
+            String fileName = parts[1];
+            int partitionIndex = Integer.parseInt(parts[2]);
+            List<String> chain = parts[3].equals(",") ? new ArrayList<>() : Arrays.asList(parts[3].split(","));
 
-                if(!replicationList.equals(",")) {
-                    String[] slaves = replicationList.split(",");
-                    Random rand = new Random();
-                    int index = rand.nextInt(slaves.length);
-                    String[] info = slaves[index].split(":");
-                    String ip = info[0]; 
-                    int port = Integer.parseInt(info[1]);
-                    String message = "replied_partition " + fileName + " " + partitionIndex + " " + fileContent;
-                    sendMessage(ip, port, message);
-                    out.writeUTF("REPLICATED_ACK:" + ip + ":" + port + ":" + fileName + ":" + partitionIndex);
-                }
+            pipelinePartition(fileName, partitionIndex, chain, in, out, channel);
 
-                System.out.println("Partition stored, replicate and ACK sent to master.");
+            System.out.println("Partition stored, replicated and ACK sent to master.");
 
-            } else if (command.startsWith("get_partition ")) {
-                String[] parts = command.split(" ", 3);
-                String fileName = parts[1];
-                int partitionIndex = Integer.parseInt(parts[2]);
+        } else if (command.startsWith("ref_chunks ")) {
+            // Dedup uploads: references the chunks held here and lists the ones to send
+            List<String> missing = chunks.ref(Arrays.asList(command.substring(11).split(",")));
+            out.writeUTF("MISSING " + (missing.isEmpty() ? "," : String.join(",", missing)));
+        } else if (command.startsWith("store_chunk ")) {
+            out.writeUTF(chunks.store(command.substring(12), in, channel) ? "ACK" : "ERROR: Chunk does not match its hash.");
+        } else if (command.startsWith("get_chunk ")) {
+            // get_chunk <hash> <offset> <length>, a length of -1 for the whole chunk
+            String[] parts = command.split(" ", 4);
+            if (!sendChunkData(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), out, channel)) {
+                out.writeUTF("ERROR: Chunk not found.");
+            }
+        } else if (command.startsWith("release_chunks ")) {
+            chunks.release(Arrays.asList(command.substring(15).split(",")));
+            out.writeUTF("ACK");
+        } else if (command.startsWith("replicate_chunk ")) {
+            // Re-replication or move of a chunk: the target gains one reference to it
+            String[] parts = command.split(" ", 3);
+            String[] target = parts[2].split(":");
+            if (sendChunk(target[0], Integer.parseInt(target[1]), parts[1])) {
+                out.writeUTF("ACK:" + parts[2] + ":" + parts[1]);
+            } else {
+                out.writeUTF("REPLICATION_FAILED:" + parts[2] + ":" + parts[1]);
+            }
+        } else if (command.startsWith("get_partition ")) {
+            String[] parts = command.split(" ", 3);
+            String fileName = parts[1];
+            int partitionIndex = Integer.parseInt(parts[2]);
     
-                String partitionData = getPartitionData(fileName, partitionIndex);
-                if (partitionData != null) {
-                    out.writeUTF("PARTITION_DATA " + partitionData);
+            if (!sendPartitionData(fileName, partitionIndex, out, channel)) {
+                out.writeUTF("ERROR: Partition not found.");
+            }
+        } else if (command.startsWith("get_range ")) {
+            // get_range <file> <index> <offset> <length>: part of a partition, for parallel client streams
+            String[] parts = command.split(" ", 5);
+            if (!sendPartitionData(parts[1], Integer.parseInt(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4]), "PARTITION_DATA", out, channel)) {
+                out.writeUTF("ERROR: Partition not found.");
+            }
+        } else if (command.startsWith("get_blocks ")) {
+            // get_blocks <file> <index> <offset> <length>: as get_range, in checksummed blocks, a length of -1 for the rest
+            String[] parts = command.split(" ", 5);
+            if (!sendBlocks(parts[1], Integer.parseInt(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4]), out)) {
+                out.writeUTF("ERROR: Partition not found.");
+            }
+        } else if (command.startsWith("get_partitions ")) {
+            // Batched reads of small files: one reply per "<file>:<index>" or "@<chunk>", as for get_blocks and get_chunk
+            for (String item : command.substring(15).split(" ")) {
+                boolean found;
+                if (item.startsWith("@")) {
+                    found = sendChunkData(item.substring(1), 0, -1, out, channel);
                 } else {
+                    int separator = item.lastIndexOf(':');
+                    found = sendBlocks(item.substring(0, separator), Integer.parseInt(item.substring(separator + 1)), 0, -1, out);
+                }
+                if (!found) {
                     out.writeUTF("ERROR: Partition not found.");
                 }
-            } else if (command.startsWith("delete_partition ")) {
-                String fileName = command.substring(17);
+            }
+        } else if (command.startsWith("delete_partitions ")) {
+            for (String fileName : command.substring(18).split(" ")) {
                 deletePartition(fileName);
-                out.writeUTF("ACK"); 
+            }
+            out.writeUTF("ACK");
+        } else if (command.startsWith("delete_partition ")) {
+            String fileName = command.substring(17);
+            deletePartition(fileName);
+            out.writeUTF("ACK"); 
+        } else if (command.startsWith("drop_partition ")) {
+            // A single partition, moved to another slave by the rebalancer
+            String[] parts = command.split(" ", 3);
+            int partitionIndex = Integer.parseInt(parts[2]);
+            File partitionFile = partitions.partitionFile(parts[1], partitionIndex);
+            partitions.remove(parts[1], partitionIndex);
+            if (partitionFile.delete() | containers.remove(parts[1], partitionIndex)) {
+                System.out.println("Deleted partition: " + partitionFile.getName());
+            }
+            Checksums.fileFor(partitionFile).delete();
+            out.writeUTF("ACK");
+        } else if (command.equals("inventory")) {
+            // Every partition held here, file-backed or packed, one "<index> <size> <crc> <file>" line each
+            for (String partition : partitions.inventory()) {
+                out.writeUTF(partition);
+            }
+            for (String partition : containers.inventory()) {
+                out.writeUTF(partition);
+            }
+            out.writeUTF("END");
+        } else if (command.startsWith("replicate ")) {
+            // Re-replication requested by the master: push a stored partition to another slave
+            String[] parts = command.split(" ", 4);
+            String fileName = parts[1];
+            int partitionIndex = Integer.parseInt(parts[2]);
+            String[] target = parts[3].split(":");
+            if (sendPartition(target[0], Integer.parseInt(target[1]), fileName, partitionIndex)) {
+                out.writeUTF("ACK:" + parts[3] + ":" + fileName + ":" + partitionIndex);
+            } else {
+                out.writeUTF("REPLICATION_FAILED:" + parts[3] + ":" + fileName + ":" + partitionIndex);
+            }
+        } else {
+            out.writeUTF("ERROR: Unknown command.");
+        }
+    }
+
+    private boolean sendPartition(String ip, int port, String fileName, int partitionIndex) {
+        File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+        boolean packed = containers.contains(fileName, partitionIndex);
+        if (!packed && !partitionFile.exists()) {
+            return false;
+        }
+        // A corrupt copy must not spread: it is checked before the peer is asked to take it
+        try {
+            boolean intact;
+            if (packed) {
+                intact = containers.read(fileName, partitionIndex) != ContainerStore.CORRUPT;
+            } else {
+                try (FileChannel file = FileChannel.open(partitionFile.toPath(), StandardOpenOption.READ)) {
+                    intact = Checksums.verify(partitionFile, file, 0, Long.MAX_VALUE);
+                }
+            }
+            if (!intact) {
+                corrupt(fileName, partitionIndex);
+                return false;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
+        SlavePool.Connection connection = null;
+        try {
+            connection = peers.borrow(ip, port);
+            connection.send("replied_partition " + fileName + " " + partitionIndex);
+            sendPartitionData(fileName, partitionIndex, 0, Long.MAX_VALUE, null, connection.out(), connection.channel());
+            boolean acked = connection.readReply().startsWith("ACK");
+            peers.release(connection);
+            return acked;
+        } catch (IOException e) {
+            peers.discard(connection);
+            e.printStackTrace();
+        }
+        return false;
     }
 
-    private void sendMessage(String ip, int port, String message) {
-        try (Socket socket = new Socket(ip, port);
-             DataInputStream in = new DataInputStream(socket.getInputStream());
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-                out.writeUTF(message);
+    private boolean sendChunk(String ip, int port, String hash) {
+        File chunkFile = chunks.file(hash);
+        if (!chunkFile.exists()) {
+            return false;
+        }
+        SlavePool.Connection connection = null;
+        try (FileChannel file = FileChannel.open(chunkFile.toPath(), StandardOpenOption.READ)) {
+            if (!chunks.verify(hash, file)) {
+                System.out.println("Corrupt chunk: " + hash);
+                return false;
+            }
+            connection = peers.borrow(ip, port);
+            connection.send("store_chunk " + hash);
+            ChunkedOutputStream.sendFile(file, 0, file.size(), connection.out(), connection.channel());
+            boolean acked = connection.readReply().equals("ACK");
+            peers.release(connection);
+            return acked;
         } catch (IOException e) {
+            peers.discard(connection);
             e.printStackTrace();
         }
+        return false;
     }
 
-    private String getPartitionData(String fileName, int partitionIndex) {
-        try {
-            File partitionFile = new File(localRoot, fileName + "_part" + partitionIndex + ".txt");
-            if (!partitionFile.exists()) {
-                return null;
+    // A chunk is checked against its name before every read; a corrupt one is answered with an error
+    private boolean sendChunkData(String hash, long offset, long length, DataOutputStream out, SocketChannel channel) throws IOException {
+        File chunkFile = chunks.file(hash);
+        if (!chunkFile.exists()) {
+            return false;
+        }
+
+        try (FileChannel file = FileChannel.open(chunkFile.toPath(), StandardOpenOption.READ)) {
+            if (!chunks.verify(hash, file)) {
+                System.out.println("Corrupt chunk: " + hash);
+                out.writeUTF("ERROR: Chunk corrupt.");
+                return true;
             }
-    
-            StringBuilder data = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(partitionFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    data.append(line).append("\n");
+            long start = Math.min(Math.max(0, offset), file.size());
+            out.writeUTF("PARTITION_DATA");
+            ChunkedOutputStream.sendFile(file, start, length < 0 ? file.size() - start : Math.min(length, file.size() - start), out, channel);
+        }
+        return true;
+    }
+
+    private boolean sendPartitionData(String fileName, int partitionIndex, DataOutputStream out, SocketChannel channel) throws IOException {
+        return sendPartitionData(fileName, partitionIndex, 0, Long.MAX_VALUE, "PARTITION_DATA", out, channel);
+    }
+
+    /**
+     * The partition goes from the page cache to the socket with transferTo, byte for byte. The
+     * requested range is clipped to the partition, so a range past its end sends no bytes. When
+     * there is a header, the blocks covering the range are checked against their checksums first
+     * and a corrupt partition is answered with an error, so the reader moves on to another replica.
+     * A packed partition is sent from one positioned read of its container.
+     */
+    private boolean sendPartitionData(String fileName, int partitionIndex, long offset, long length, String header, DataOutputStream out,
+            SocketChannel channel) throws IOException {
+        byte[] packed = containers.read(fileName, partitionIndex);
+        if (packed == ContainerStore.CORRUPT) {
+            corrupt(fileName, partitionIndex);
+            if (header == null) {
+                throw new IOException("Partition corrupt: " + fileName + " (Index: " + partitionIndex + ")");
+            }
+            out.writeUTF("ERROR: Partition corrupt.");
+            return true;
+        }
+        if (packed != null) {
+            int start = (int) Math.min(Math.max(0, offset), packed.length);
+            int count = (int) Math.min(length, packed.length - start);
+            if (header != null) {
+                out.writeUTF(header);
+            }
+            try (ChunkedOutputStream content = new ChunkedOutputStream(out, chunkSize)) {
+                content.write(packed, start, count);
+            }
+            return true;
+        }
+
+        File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+        if (!partitionFile.exists()) {
+            return false;
+        }
+
+        try (FileChannel file = FileChannel.open(partitionFile.toPath(), StandardOpenOption.READ)) {
+            long start = Math.min(Math.max(0, offset), file.size());
+            long count = Math.min(length, file.size() - start);
+            if (header != null) {
+                if (!Checksums.verify(partitionFile, file, start, start + count)) {
+                    corrupt(fileName, partitionIndex);
+                    out.writeUTF("ERROR: Partition corrupt.");
+                    return true;
                 }
+                out.writeUTF(header);
             }
-            return data.toString();
-        } catch (IOException e) {
-            e.printStackTrace();
+            ChunkedOutputStream.sendFile(file, start, count, out, channel);
         }
-        return null;
+        return true;
     }
 
-    private void deletePartition(String fileName) {
-        File directory = new File(localRoot);
-        File[] files = directory.listFiles((dir, name) -> name.startsWith(fileName + "_part"));
-        if (files != null) {
-            for (File file : files) {
-                if (file.delete()) {
-                    System.out.println("Deleted partition: " + file.getName());
+    /**
+     * Sends the blocks of the partition covering [offset, offset + length) with the checksums they
+     * were stored with, after "BLOCKS <skip> <count>", so the reader checks what it receives
+     * itself (see ChecksummedInputStream). A block that no longer matches goes out all the same,
+     * for the reader to reject, and is reported. Partitions stored without checksums, and packed
+     * ones, already checked against theirs, are sent with checksums computed as they are read.
+     */
+    private boolean sendBlocks(String fileName, int partitionIndex, long offset, long length, DataOutputStream out) throws IOException {
+        byte[] packed = containers.read(fileName, partitionIndex);
+        if (packed == ContainerStore.CORRUPT) {
+            corrupt(fileName, partitionIndex);
+            out.writeUTF("ERROR: Partition corrupt.");
+            return true;
+        }
+        File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+        if (packed == null && !partitionFile.exists()) {
+            return false;
+        }
+
+        try (FileChannel file = packed == null ? FileChannel.open(partitionFile.toPath(), StandardOpenOption.READ) : null) {
+            long size = packed == null ? file.size() : packed.length;
+            int[] sums = packed == null ? Checksums.load(partitionFile) : null;
+            if (sums != null && sums.length != Checksums.blocks(size)) {
+                corrupt(fileName, partitionIndex);
+                out.writeUTF("ERROR: Partition corrupt.");
+                return true;
+            }
+            long start = Math.min(Math.max(0, offset), size);
+            long end = length < 0 ? size : start + Math.min(length, size - start);
+            long first = start / Checksums.BLOCK_SIZE;
+            out.writeUTF("BLOCKS " + (start - first * Checksums.BLOCK_SIZE) + " " + (end - start));
+
+            byte[] block = packed == null ? new byte[Checksums.BLOCK_SIZE] : null;
+            CRC32C crc = new CRC32C();
+            boolean reported = false;
+            for (long position = first * Checksums.BLOCK_SIZE; position < end; position += Checksums.BLOCK_SIZE) {
+                int n = (int) Math.min(Checksums.BLOCK_SIZE, size - position);
+                if (packed != null) {
+                    block = Arrays.copyOfRange(packed, (int) position, (int) position + n);
                 } else {
-                    System.out.println("Failed to delete partition: " + file.getName());
+                    ByteBuffer buffer = ByteBuffer.wrap(block, 0, n);
+                    while (buffer.hasRemaining() && file.read(buffer, position + buffer.position()) >= 0) {
+                    }
                 }
+                crc.reset();
+                crc.update(block, 0, n);
+                int expected = sums != null ? sums[(int) (position / Checksums.BLOCK_SIZE)] : (int) crc.getValue();
+                if (expected != (int) crc.getValue() && !reported) {
+                    corrupt(fileName, partitionIndex);
+                    reported = true;
+                }
+                ChecksummedInputStream.writeBlock(out, block, n, expected);
             }
+            ChecksummedInputStream.writeEnd(out);
         }
+        return true;
     }
 
-    private void storePartition(String fileName, int partitionIndex, String fileContent) {
+    private void deletePartition(String fileName) throws IOException {
+        for (int partitionIndex : containers.removeFile(fileName)) {
+            System.out.println("Deleted packed partition: " + fileName + " (Index: " + partitionIndex + ")");
+        }
+        for (int partitionIndex : partitions.removeFile(fileName)) {
+            File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+            if (partitionFile.delete()) {
+                System.out.println("Deleted partition: " + partitionFile.getName());
+            } else {
+                System.out.println("Failed to delete partition: " + partitionFile.getName());
+            }
+            Checksums.fileFor(partitionFile).delete();
+        }
+    }
+
+    /**
+     * Stores a partition while streaming each piece on to the first slave of the chain, which
+     * does the same with the rest of it, so every replica is written in about one transfer time.
+     * Replies one line per node, this one first: its ACK, then each downstream ACK or REPLICATION_FAILED.
+     * A downstream failure never stops the local copy.
+     */
+    private void pipelinePartition(String fileName, int partitionIndex, List<String> chain, DataInputStream in, DataOutputStream out,
+            SocketChannel channel) throws IOException {
+        SlavePool.Connection next = null;
+        if (!chain.isEmpty()) {
+            String[] info = chain.get(0).split(":");
+            try {
+                next = peers.borrow(info[0], Integer.parseInt(info[1]));
+                String rest = chain.size() > 1 ? String.join(",", chain.subList(1, chain.size())) : ",";
+                next.send("partition " + fileName + " " + partitionIndex + " " + rest);
+            } catch (IOException e) {
+                next = dropDownstream(next, e);
+            }
+        }
+
+        File fileDir = new File(localRoot);
+        if (!fileDir.exists()) {
+            fileDir.mkdirs();
+        }
+        File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+        // Without checksums while it is rewritten, the partition is read unchecked rather than reported corrupt
+        Checksums.fileFor(partitionFile).delete();
+        Checksums checksums = new Checksums();
+        // Until it outgrows packMaxSize the partition is kept in memory, to be packed into a container
+        ByteArrayOutputStream packed = packMaxSize > 0 ? new ByteArrayOutputStream() : null;
+        FileChannel file = packed == null ? createPartitionFile(partitionFile) : null;
+        long position = 0;
         try {
-            File fileDir = new File(localRoot);
-            if (!fileDir.exists()) {
-                fileDir.mkdirs();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+            int length;
+            while ((length = in.readInt()) != 0) {
+                if (length < 0 || length > ChunkedInputStream.MAX_CHUNK_SIZE) {
+                    throw new IOException("Invalid chunk length: " + length);
+                }
+                if (next != null) {
+                    try {
+                        next.out().writeInt(length);
+                        next.out().flush();
+                    } catch (IOException e) {
+                        next = dropDownstream(next, e);
+                    }
+                }
+                for (int remaining = length; remaining > 0; ) {
+                    buffer.clear().limit(Math.min(remaining, buffer.capacity()));
+                    int n = channel.read(buffer);
+                    if (n < 0) {
+                        throw new EOFException("Connection closed inside a chunk");
+                    }
+                    buffer.flip();
+                    checksums.update(buffer);
+                    ByteBuffer forward = buffer.duplicate();
+                    if (packed != null && packed.size() + n > packMaxSize) {
+                        file = createPartitionFile(partitionFile);
+                        ByteBuffer spilled = ByteBuffer.wrap(packed.toByteArray());
+                        while (spilled.hasRemaining()) {
+                            file.write(spilled, spilled.position());
+                        }
+                        packed = null;
+                    }
+                    if (packed != null) {
+                        byte[] bytes = new byte[n];
+                        buffer.get(bytes);
+                        packed.write(bytes);
+                        position += n;
+                    }
+                    while (buffer.hasRemaining()) {
+                        position += file.write(buffer, position);
+                    }
+                    if (next != null) {
+                        try {
+                            while (forward.hasRemaining()) {
+                                next.channel().write(forward);
+                            }
+                        } catch (IOException e) {
+                            next = dropDownstream(next, e);
+                        }
+                    }
+                    remaining -= n;
+                }
             }
+            if (next != null) {
+                try {
+                    next.out().writeInt(0);
+                    next.out().flush();
+                } catch (IOException e) {
+                    next = dropDownstream(next, e);
+                }
+            }
+            // On disk before the ACK, as a packed partition is
+            if (file != null) {
+                file.force(false);
+            }
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+        if (packed != null) {
+            containers.put(fileName, partitionIndex, packed.toByteArray());
+            partitions.remove(fileName, partitionIndex);
+            partitionFile.delete();
+        } else {
+            checksums.write(partitionFile);
+            partitions.put(fileName, partitionIndex, position, checksums.value());
+            containers.remove(fileName, partitionIndex);
+        }
+        System.out.println("Stored partition: " + fileName + " (Index: " + partitionIndex + ")");
 
-            File partitionFile = new File(fileDir, fileName + "_part" + partitionIndex + ".txt");
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(partitionFile))) {
-                writer.write(fileContent);
+        out.writeUTF("ACK:" + ip + ":" + port + ":" + fileName + ":" + partitionIndex);
+        out.flush();
+        for (String downstream : chain) {
+            String reply = null;
+            if (next != null) {
+                try {
+                    reply = next.readReply();
+                } catch (IOException e) {
+                    next = dropDownstream(next, e);
+                }
             }
+            out.writeUTF(reply != null ? reply : "REPLICATION_FAILED:" + downstream + ":" + fileName + ":" + partitionIndex);
+        }
+        if (next != null) {
+            peers.release(next);
+        }
+    }
 
-            System.out.println("Stored partition: " + fileName + " (Index: " + partitionIndex + ")");
-        } catch (IOException e) {
-            e.printStackTrace();
+    private FileChannel createPartitionFile(File partitionFile) throws IOException {
+        return FileChannel.open(partitionFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private SlavePool.Connection dropDownstream(SlavePool.Connection connection, IOException e) {
+        System.out.println("Replication pipeline broken: " + e);
+        peers.discard(connection);
+        return null;
+    }
+
+    private void storePartition(String fileName, int partitionIndex, DataInputStream in, SocketChannel channel) throws IOException {
+        File fileDir = new File(localRoot);
+        if (!fileDir.exists()) {
+            fileDir.mkdirs();
         }
+
+        File partitionFile = partitions.partitionFile(fileName, partitionIndex);
+        Checksums.fileFor(partitionFile).delete();
+        boolean pack;
+        try (FileChannel file = FileChannel.open(partitionFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = ChunkedInputStream.receiveFile(in, channel, file);
+            pack = packMaxSize > 0 && size <= packMaxSize;
+            if (!pack) {
+                file.force(false);
+                partitions.put(fileName, partitionIndex, size, Checksums.compute(partitionFile, file));
+            }
+        }
+        if (pack) {
+            containers.put(fileName, partitionIndex, Files.readAllBytes(partitionFile.toPath()));
+            partitions.remove(fileName, partitionIndex);
+            partitionFile.delete();
+        } else {
+            containers.remove(fileName, partitionIndex);
+        }
+
+        System.out.println("Stored partition: " + fileName + " (Index: " + partitionIndex + ")");
     }
 
     public static void main(String[] args) {
@@ -192,6 +729,8 @@ public class Slave {
             Slave slave = new Slave(1);
             if (slave != null) {
                 slave.sendRegisterMessage();
+                slave.startHeartbeats();
+                slave.startScrubber();
                 slave.listenForMasterCommands();
             }
         }).start();
@@ -199,6 +738,8 @@ public class Slave {
             Slave slave = new Slave(2);
             if (slave != null) {
                 slave.sendRegisterMessage();
+                slave.startHeartbeats();
+                slave.startScrubber();
                 slave.listenForMasterCommands();
             }
         }).start();
@@ -0,0 +1,131 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Failure detector fed by the slaves' UDP heartbeats. A slave is alive from its first heartbeat
+ * until none has arrived for failureTimeout; the listener hears about both transitions.
+ */
+public class SlaveMonitor {
+
+    public static class Status {
+        public final Catalog.Replica slave;
+        // "ip:port:root:masterPort", as in the REGISTER message
+        public final String details;
+        volatile long lastSeen;
+        volatile int load;
+        volatile long freeBytes;
+        volatile long totalBytes;
+        volatile boolean alive;
+
+        Status(Catalog.Replica slave, String details) {
+            this.slave = slave;
+            this.details = details;
+        }
+
+        public int load() {
+            return load;
+        }
+
+        public long freeBytes() {
+            return freeBytes;
+        }
+
+        public long totalBytes() {
+            return totalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return slave + (alive ? " UP" : " DOWN") + " load=" + load + " free=" + freeBytes + "/" + totalBytes;
+        }
+    }
+
+    public interface Listener {
+        void slaveUp(Status status);
+
+        void slaveDown(Status status);
+    }
+
+    private final Map<Catalog.Replica, Status> statuses = new ConcurrentHashMap<>();
+    private final long failureTimeout;
+    private final Listener listener;
+    private final ScheduledExecutorService checker;
+
+    public SlaveMonitor(long failureTimeout, Listener listener) {
+        this.failureTimeout = failureTimeout;
+        this.listener = listener;
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "slave-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(250, failureTimeout / 4);
+        checker.scheduleWithFixedDelay(this::checkTimeouts, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a heartbeat. Disk figures are -1 when the slave did not report them.
+     */
+    public void heartbeat(String details, int load, long freeBytes, long totalBytes) {
+        String[] parts = details.split(":");
+        Catalog.Replica slave = new Catalog.Replica(parts[0], Integer.parseInt(parts[1]));
+        Status status = statuses.computeIfAbsent(slave, k -> new Status(slave, details));
+        boolean revived;
+        synchronized (status) {
+            status.lastSeen = System.currentTimeMillis();
+            status.load = load;
+            status.freeBytes = freeBytes;
+            status.totalBytes = totalBytes;
+            revived = !status.alive;
+            status.alive = true;
+        }
+        if (revived) {
+            listener.slaveUp(status);
+        }
+    }
+
+    void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        for (Status status : statuses.values()) {
+            boolean died;
+            synchronized (status) {
+                died = status.alive && now - status.lastSeen > failureTimeout;
+                if (died) {
+                    status.alive = false;
+                }
+            }
+            if (died) {
+                try {
+                    listener.slaveDown(status);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public boolean isAlive(Catalog.Replica slave) {
+        Status status = statuses.get(slave);
+        return status != null && status.alive;
+    }
+
+    public List<Status> alive() {
+        List<Status> alive = new ArrayList<>();
+        for (Status status : statuses.values()) {
+            if (status.alive) {
+                alive.add(status);
+            }
+        }
+        return alive;
+    }
+
+    public Collection<Status> all() {
+        return new ArrayList<>(statuses.values());
+    }
+
+    public void close() {
+        checker.shutdownNow();
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps long-lived connections to each slave so a command costs one round trip instead of a
+ * TCP handshake plus a round trip. A connection is borrowed for one command at a time; every
+ * command carries a request ID that the slave echoes back, so a stale reply is never mistaken
+ * for the answer to a later command.
+ */
+public class SlavePool {
+    private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long idleTimeout;
+    private final int maxIdle;
+    private final ScheduledExecutorService evictor;
+
+    public SlavePool(int connectTimeout, int readTimeout, long idleTimeout, int maxIdle) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+        this.maxIdle = maxIdle;
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "slave-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictAndCheck, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public class Connection {
+        final String address;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        long lastUsed;
+        long requestId;
+        boolean awaitingId;
+
+        Connection(String ip, int port) throws IOException {
+            address = ip + ":" + port;
+            socket = SocketChannel.open().socket();
+            socket.connect(new InetSocketAddress(ip, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        public DataInputStream in() {
+            return in;
+        }
+
+        public DataOutputStream out() {
+            return out;
+        }
+
+        /**
+         * The underlying channel, for zero-copy transfers. Flush {@link #out()} before writing to it.
+         */
+        public SocketChannel channel() {
+            return socket.getChannel();
+        }
+
+        public void send(String command) throws IOException {
+            requestId = requestIds.incrementAndGet();
+            awaitingId = true;
+            out.writeLong(requestId);
+            out.writeUTF(command);
+            out.flush();
+        }
+
+        public String readReply() throws IOException {
+            if (awaitingId) {
+                long id = in.readLong();
+                if (id != requestId) {
+                    throw new IOException("Reply for request " + id + " from " + address + ", expected " + requestId);
+                }
+                awaitingId = false;
+            }
+            return in.readUTF();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public Connection borrow(String ip, int port) throws IOException {
+        Deque<Connection> connections = idle.get(ip + ":" + port);
+        Connection connection;
+        while (connections != null && (connection = connections.pollFirst()) != null) {
+            if (!connection.socket.isClosed()) {
+                return connection;
+            }
+        }
+        return new Connection(ip, port);
+    }
+
+    /**
+     * Returns a connection whose last command completed cleanly.
+     */
+    public void release(Connection connection) {
+        if (connection.awaitingId) {
+            discard(connection);
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        Deque<Connection> connections = idle.computeIfAbsent(connection.address, k -> new ConcurrentLinkedDeque<>());
+        if (connections.size() >= maxIdle) {
+            connection.close();
+        } else {
+            connections.offerFirst(connection);
+        }
+    }
+
+    /**
+     * Closes the idle connections to a slave that went away or restarted; they would only fail.
+     */
+    public void forget(String ip, int port) {
+        Deque<Connection> connections = idle.remove(ip + ":" + port);
+        Connection connection;
+        while (connections != null && (connection = connections.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Drops a connection left in an unknown state by a failed command.
+     */
+    public void discard(Connection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    void evictAndCheck() {
+        long now = System.currentTimeMillis();
+        for (Deque<Connection> connections : idle.values()) {
+            for (int i = connections.size(); i > 0; i--) {
+                Connection connection = connections.pollLast();
+                if (connection == null) {
+                    break;
+                }
+                if (now - connection.lastUsed > idleTimeout) {
+                    connection.close();
+                    continue;
+                }
+                try {
+                    connection.send("ping");
+                    if (!connection.readReply().equals("PONG")) {
+                        throw new IOException("Unexpected health check reply from " + connection.address);
+                    }
+                    connections.offerFirst(connection);
+                } catch (IOException e) {
+                    System.out.println("Dropping dead connection to " + connection.address);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        evictor.shutdownNow();
+        for (Deque<Connection> connections : idle.values()) {
+            Connection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Checks against a running slave that a pooled connection stays usable after a health ping:
+ * a ping answered with anything more than PONG leaves a stray reply that breaks the next command.
+ * Usage: java server.SlavePoolCheck <ip>:<port>
+ */
+public class SlavePoolCheck {
+    public static void main(String[] args) throws IOException {
+        String[] address = args[0].split(":");
+        String ip = address[0];
+        int port = Integer.parseInt(address[1]);
+        SlavePool pool = new SlavePool(5000, 5000, 60000, 8);
+        boolean ok = true;
+        try {
+            // Ping then a real command on one connection, as the pool does
+            SlavePool.Connection connection = pool.borrow(ip, port);
+            connection.send("ping");
+            ok &= expect("ping", connection.readReply(), "PONG");
+            pool.release(connection);
+            ok &= inventory(pool.borrow(ip, port), pool);
+
+            // The evictor's health check, then a real command on the connection it put back
+            pool.evictAndCheck();
+            ok &= inventory(pool.borrow(ip, port), pool);
+        } catch (IOException e) {
+            e.printStackTrace();
+            ok = false;
+        } finally {
+            pool.close();
+        }
+        System.out.println(ok ? "SlavePoolCheck: OK" : "SlavePoolCheck: FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean inventory(SlavePool.Connection connection, SlavePool pool) throws IOException {
+        connection.send("inventory");
+        int partitions = 0;
+        while (!connection.readReply().equals("END")) {
+            partitions++;
+        }
+        pool.release(connection);
+        System.out.println("inventory after ping: " + partitions + " partitions");
+        return true;
+    }
+
+    private static boolean expect(String step, String reply, String expected) {
+        if (!reply.equals(expected)) {
+            System.out.println(step + ": got \"" + reply + "\", expected \"" + expected + "\"");
+            return false;
+        }
+        return true;
+    }
+}